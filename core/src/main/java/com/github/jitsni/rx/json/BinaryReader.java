@@ -0,0 +1,193 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jitsni.rx.json;
+
+import rx.Subscriber;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.jitsni.rx.json.BinaryWriter.ARRAY;
+import static com.github.jitsni.rx.json.BinaryWriter.FALSE;
+import static com.github.jitsni.rx.json.BinaryWriter.NULL;
+import static com.github.jitsni.rx.json.BinaryWriter.NUMBER;
+import static com.github.jitsni.rx.json.BinaryWriter.OBJECT;
+import static com.github.jitsni.rx.json.BinaryWriter.STRING;
+import static com.github.jitsni.rx.json.BinaryWriter.TRUE;
+import static com.github.jitsni.rx.json.BinaryWriter.VERSION;
+
+/**
+ * Decodes buffers written by {@link BinaryWriter} to values or tokens.
+ *
+ * @author Jitendra Kotamraju
+ */
+final class BinaryReader {
+    private final List<String> keys = new ArrayList<>();
+    private ByteBuffer buffer;
+
+    /**
+     * @throws JsonParseException if the buffer is not a value in the binary format
+     */
+    JsonValue value(ByteBuffer encoded) {
+        start(encoded);
+        try {
+            return readValue(buffer.get());
+        } catch (BufferUnderflowException e) {
+            throw corrupt("Unexpected end of buffer");
+        }
+    }
+
+    /**
+     * @throws JsonParseException if the buffer is not a value in the binary
+     *      format, after the tokens that were read before the problem
+     */
+    void tokens(ByteBuffer encoded, Subscriber<? super JsonToken> subscriber) {
+        start(encoded);
+        try {
+            readTokens(buffer.get(), subscriber);
+        } catch (BufferUnderflowException e) {
+            throw corrupt("Unexpected end of buffer");
+        }
+    }
+
+    private void start(ByteBuffer encoded) {
+        buffer = encoded.duplicate();
+        keys.clear();
+        byte version = buffer.hasRemaining() ? buffer.get() : -1;
+        if (version != VERSION) {
+            throw corrupt("Unknown binary format version = " + version);
+        }
+    }
+
+    // Offset is of the byte after the problem, from the start of the encoded buffer
+    private JsonParseException corrupt(String message) {
+        return new JsonParseException(message, buffer.position(), -1, -1);
+    }
+
+    private JsonValue readValue(byte tag) {
+        switch (tag) {
+            case STRING:
+                return new JsonString(readString(varint()));
+            case NUMBER:
+                return new JsonNumber(readString(varint()));
+            case TRUE:
+                return JsonValue.TRUE;
+            case FALSE:
+                return JsonValue.FALSE;
+            case NULL:
+                return JsonValue.NULL;
+            case ARRAY: {
+                buffer.getInt();
+                JsonArray array = new JsonArray();
+                for (int n = varint(); n > 0; n--) {
+                    array.add(readValue(buffer.get()));
+                }
+                return array;
+            }
+            case OBJECT: {
+                buffer.getInt();
+                JsonObject object = new JsonObject();
+                for (int n = varint(); n > 0; n--) {
+                    String key = readKey();
+                    object.add(key, readValue(buffer.get()));
+                }
+                return object;
+            }
+            default:
+                throw corrupt("Unknown tag = " + tag);
+        }
+    }
+
+    private void readTokens(byte tag, Subscriber<? super JsonToken> subscriber) {
+        switch (tag) {
+            case STRING:
+                subscriber.onNext(new JsonToken(JsonToken.Id.VALUE_STRING, CharBuffer.wrap(readString(varint()))));
+                break;
+            case NUMBER:
+                subscriber.onNext(new JsonToken(JsonToken.Id.VALUE_NUMBER, CharBuffer.wrap(readString(varint()))));
+                break;
+            case TRUE:
+                subscriber.onNext(JsonToken.VALUE_TRUE);
+                break;
+            case FALSE:
+                subscriber.onNext(JsonToken.VALUE_FALSE);
+                break;
+            case NULL:
+                subscriber.onNext(JsonToken.VALUE_NULL);
+                break;
+            case ARRAY:
+                buffer.getInt();
+                subscriber.onNext(JsonToken.START_ARRAY);
+                for (int n = varint(); n > 0; n--) {
+                    readTokens(buffer.get(), subscriber);
+                }
+                subscriber.onNext(JsonToken.END_ARRAY);
+                break;
+            case OBJECT:
+                buffer.getInt();
+                subscriber.onNext(JsonToken.START_OBJECT);
+                for (int n = varint(); n > 0; n--) {
+                    subscriber.onNext(new JsonToken(JsonToken.Id.KEY, CharBuffer.wrap(readKey())));
+                    readTokens(buffer.get(), subscriber);
+                }
+                subscriber.onNext(JsonToken.END_OBJECT);
+                break;
+            default:
+                throw corrupt("Unknown tag = " + tag);
+        }
+    }
+
+    private String readKey() {
+        int n = varint();
+        if ((n & 1) == 1) {
+            if (n >>> 1 >= keys.size()) {
+                throw corrupt("Unknown key index = " + (n >>> 1));
+            }
+            return keys.get(n >>> 1);
+        }
+        String key = readString(n >>> 1);
+        keys.add(key);
+        return key;
+    }
+
+    private String readString(int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw corrupt("String length " + length + " is past the end of buffer");
+        }
+        int position = buffer.position();
+        buffer.position(position + length);
+        try {
+            return Utf8.decode(buffer, position, length);
+        } catch (IndexOutOfBoundsException e) {
+            // A multi-byte sequence that the string's bytes cut
+            throw corrupt("Invalid UTF-8 in the string at " + position);
+        }
+    }
+
+    private int varint() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
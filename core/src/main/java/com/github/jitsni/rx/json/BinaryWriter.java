@@ -0,0 +1,199 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jitsni.rx.json;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes a {@link JsonValue} in the binary format:
+ * <pre>
+ * buffer : VERSION value
+ * value  : STRING varint(byte length) utf-8 bytes
+ *        | NUMBER varint(byte length) ascii bytes
+ *        | TRUE | FALSE | NULL
+ *        | ARRAY int(byte length of the rest) varint(count) value*
+ *        | OBJECT int(byte length of the rest) varint(count) (key value)*
+ * key    : varint(byte length &lt;&lt; 1) utf-8 bytes   first use, next index in the key table
+ *        | varint(index &lt;&lt; 1 | 1)                 later uses
+ * </pre>
+ * Container lengths are fixed width so that they can be filled in after the
+ * contents are written, and let a reader skip a container in one step. The
+ * key table is per buffer, so every buffer can be decoded on its own.
+ *
+ * @author Jitendra Kotamraju
+ */
+final class BinaryWriter {
+    static final byte VERSION = 1;
+
+    static final byte STRING = 1;
+    static final byte NUMBER = 2;
+    static final byte TRUE = 3;
+    static final byte FALSE = 4;
+    static final byte NULL = 5;
+    static final byte ARRAY = 6;
+    static final byte OBJECT = 7;
+
+    private final Map<String, Integer> keys = new HashMap<>();
+    private final BufferPool<ByteBuffer> pool;
+    // Scratch buffer, reused for all the values. The encoded copies are owned downstream and not pooled
+    private ByteBuffer buffer;
+
+    /**
+     * @param pool source of the scratch buffer, or null to allocate it
+     */
+    BinaryWriter(BufferPool<ByteBuffer> pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return a new buffer, ready to be read, with the encoded value
+     */
+    ByteBuffer encode(JsonValue value) {
+        keys.clear();
+        if (buffer == null) {
+            buffer = allocate(1024);
+        }
+        buffer.clear();
+        buffer.put(VERSION);
+        write(value);
+        buffer.flip();
+        ByteBuffer encoded = ByteBuffer.allocate(buffer.remaining());
+        encoded.put(buffer).flip();
+        return encoded;
+    }
+
+    private void write(JsonValue value) {
+        if (value instanceof OffHeapValue) {
+            value = ((OffHeapValue) value).toJsonValue();
+        }
+        switch (value.getValueType()) {
+            case STRING:
+                tag(STRING);
+                chars(value.toString(), 0);
+                break;
+            case NUMBER:
+                tag(NUMBER);
+                chars(value.toString(), 0);
+                break;
+            case TRUE:
+                tag(TRUE);
+                break;
+            case FALSE:
+                tag(FALSE);
+                break;
+            case NULL:
+                tag(NULL);
+                break;
+            case ARRAY: {
+                List<JsonValue> values = ((JsonArray) value).values();
+                int start = startContainer(ARRAY, values.size());
+                for (JsonValue element : values) {
+                    write(element);
+                }
+                endContainer(start);
+                break;
+            }
+            case OBJECT: {
+                JsonObject object = (JsonObject) value;
+                int start = startContainer(OBJECT, object.entries().size());
+                for (Map.Entry<String, Object> entry : object.entries()) {
+                    key(entry.getKey());
+                    write((JsonValue) entry.getValue());
+                }
+                endContainer(start);
+                break;
+            }
+        }
+    }
+
+    private void key(String key) {
+        Integer index = keys.get(key);
+        if (index == null) {
+            keys.put(key, keys.size());
+            chars(key, 1);
+        } else {
+            ensure(5);
+            varint(index << 1 | 1);
+        }
+    }
+
+    // A new key's length is shifted to leave room for the key reference flag
+    private void chars(CharSequence chars, int shift) {
+        int length = Utf8.length(chars);
+        ensure(5 + length);
+        varint(length << shift);
+        Utf8.encode(chars, buffer);
+    }
+
+    private void tag(byte tag) {
+        ensure(1);
+        buffer.put(tag);
+    }
+
+    private int startContainer(byte tag, int count) {
+        ensure(10);
+        buffer.put(tag);
+        int start = buffer.position();
+        buffer.putInt(0);
+        varint(count);
+        return start;
+    }
+
+    private void endContainer(int start) {
+        buffer.putInt(start, buffer.position() - start - 4);
+    }
+
+    private void varint(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer bigger = allocate(Math.max(2 * buffer.capacity(), buffer.position() + bytes));
+            buffer.flip();
+            bigger.put(buffer);
+            release(buffer);
+            buffer = bigger;
+        }
+    }
+
+    /**
+     * Gives back the scratch buffer. The writer must not be used after this.
+     */
+    void close() {
+        if (buffer != null) {
+            release(buffer);
+            buffer = null;
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return pool == null ? ByteBuffer.allocate(capacity) : pool.acquire(capacity);
+    }
+
+    private void release(ByteBuffer buffer) {
+        if (pool != null) {
+            pool.release(buffer);
+        }
+    }
+}
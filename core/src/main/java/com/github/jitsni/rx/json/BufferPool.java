@@ -0,0 +1,44 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jitsni.rx.json;
+
+import java.nio.Buffer;
+
+/**
+ * Source of reusable buffers. Implementations must be thread-safe since a pool
+ * is typically shared by all the subscriptions of a transformer.
+ *
+ * @author Jitendra Kotamraju
+ */
+public interface BufferPool<B extends Buffer> {
+
+    /**
+     * Returns a cleared buffer whose capacity is at least the given capacity.
+     *
+     * @param capacity minimum capacity of the buffer
+     * @return a buffer that is owned by the caller until it is released
+     */
+    B acquire(int capacity);
+
+    /**
+     * Gives the buffer back to the pool. The caller must not use the buffer
+     * (or any slice of it) after releasing it.
+     *
+     * @param buffer a buffer that is obtained from {@link #acquire(int)}
+     */
+    void release(B buffer);
+
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+import rx.exceptions.Exceptions;
+import rx.subscriptions.Subscriptions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sources of byte buffers that are read from asynchronous channels, so that
+ * no thread is blocked waiting for input. A read is issued only when there
+ * is demand from downstream, and there is at most one read in flight, so a
+ * subscription holds at most one buffer.
+ *
+ * <p>
+ * The buffers come from a pool and go back to it as soon as downstream's
+ * {@code onNext} returns, so downstream must be done with a buffer by then.
+ * {@link DecodeTransformer} is:
+ * <pre>
+ * ChannelSource.read(path, StripedBufferPool.directBytes(), 64 * 1024)
+ *         .compose(new DecodeTransformer())
+ *         .compose(new JsonTokenTransformer())
+ * </pre>
+ *
+ * @author Jitendra Kotamraju
+ */
+public final class ChannelSource {
+
+    private ChannelSource() {
+    }
+
+    /**
+     * Reads the file from the start for every subscription. The file is
+     * opened when subscribed and closed when the subscription ends.
+     *
+     * @param bufferSize bytes per read
+     */
+    public static Observable<ByteBuffer> read(Path file, BufferPool<ByteBuffer> pool, int bufferSize) {
+        return Observable.create(subscriber -> {
+            AsynchronousFileChannel channel;
+            try {
+                channel = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+            } catch (IOException e) {
+                subscriber.onError(e);
+                return;
+            }
+            subscriber.add(Subscriptions.create(() -> {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // nothing is read anymore
+                }
+            }));
+            subscriber.setProducer(new ReadProducer(subscriber, pool, bufferSize, channel, null));
+        });
+    }
+
+    /**
+     * Reads the file from the start for every subscription. The channel is
+     * not closed.
+     *
+     * @param bufferSize bytes per read
+     */
+    public static Observable<ByteBuffer> read(AsynchronousFileChannel channel, BufferPool<ByteBuffer> pool,
+                                              int bufferSize) {
+        return Observable.create(subscriber ->
+                subscriber.setProducer(new ReadProducer(subscriber, pool, bufferSize, channel, null)));
+    }
+
+    /**
+     * Reads the channel, for example a socket, up to its end. As it can be
+     * read only once, there should be only one subscription. The channel is
+     * not closed.
+     *
+     * @param bufferSize bytes per read
+     */
+    public static Observable<ByteBuffer> read(AsynchronousByteChannel channel, BufferPool<ByteBuffer> pool,
+                                              int bufferSize) {
+        return Observable.create(subscriber ->
+                subscriber.setProducer(new ReadProducer(subscriber, pool, bufferSize, null, channel)));
+    }
+
+    /*
+     * Issues a read whenever there is demand and no read in flight. The
+     * completion of a read emits the buffer, gives it back to the pool, and
+     * issues the next read if there is still demand.
+     */
+    private static final class ReadProducer implements Producer, CompletionHandler<Integer, ByteBuffer> {
+        private final Subscriber<? super ByteBuffer> subscriber;
+        private final BufferPool<ByteBuffer> pool;
+        private final int bufferSize;
+        private final AsynchronousFileChannel fileChannel;
+        private final AsynchronousByteChannel byteChannel;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicBoolean reading = new AtomicBoolean();
+        private long position;
+        private volatile boolean done;
+
+        ReadProducer(Subscriber<? super ByteBuffer> subscriber, BufferPool<ByteBuffer> pool, int bufferSize,
+                     AsynchronousFileChannel fileChannel, AsynchronousByteChannel byteChannel) {
+            this.subscriber = subscriber;
+            this.pool = pool;
+            this.bufferSize = bufferSize;
+            this.fileChannel = fileChannel;
+            this.byteChannel = byteChannel;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                return;
+            }
+            while (true) {
+                long current = requested.get();
+                long next = current + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+                if (requested.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+            tryRead();
+        }
+
+        private void tryRead() {
+            // The demand may arrive just after a completed read has given up the flag, so check again
+            while (!done && requested.get() > 0 && !subscriber.isUnsubscribed()) {
+                if (!reading.compareAndSet(false, true)) {
+                    return;
+                }
+                if (requested.get() > 0 && !subscriber.isUnsubscribed()) {
+                    read();
+                    return;
+                }
+                reading.set(false);
+            }
+        }
+
+        private void read() {
+            ByteBuffer buffer = pool.acquire(bufferSize);
+            buffer.clear().limit(bufferSize);
+            try {
+                if (fileChannel != null) {
+                    fileChannel.read(buffer, position, buffer, this);
+                } else {
+                    byteChannel.read(buffer, buffer, this);
+                }
+            } catch (RuntimeException e) {
+                failed(e, buffer);
+            }
+        }
+
+        @Override
+        public void completed(Integer result, ByteBuffer buffer) {
+            if (result == -1) {
+                pool.release(buffer);
+                done = true;
+                subscriber.onCompleted();
+                return;
+            }
+            position += result;
+            buffer.flip();
+            if (buffer.hasRemaining()) {
+                try {
+                    subscriber.onNext(buffer);
+                } catch (Throwable e) {
+                    // Thrown on the channel's thread, which has nobody to tell
+                    Exceptions.throwIfFatal(e);
+                    failed(e, buffer);
+                    return;
+                }
+                pool.release(buffer);
+                if (requested.get() != Long.MAX_VALUE) {
+                    requested.decrementAndGet();
+                }
+            } else {
+                pool.release(buffer);
+            }
+            reading.set(false);
+            tryRead();
+        }
+
+        @Override
+        public void failed(Throwable e, ByteBuffer buffer) {
+            pool.release(buffer);
+            done = true;
+            if (!subscriber.isUnsubscribed()) {
+                subscriber.onError(e);
+            }
+        }
+    }
+}
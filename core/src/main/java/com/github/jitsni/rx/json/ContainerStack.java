@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Types of the open arrays and objects, innermost last, in a byte array that
+ * grows as needed. Tracking the nesting allocates nothing once the array is
+ * big enough, and the type of the current container is one array read.
+ *
+ * @author Jitendra Kotamraju
+ */
+final class ContainerStack {
+    /** Type at depth 0, when no container is open */
+    static final byte NONE = 0;
+    static final byte ARRAY = 1;
+    static final byte OBJECT = 2;
+
+    private byte[] types = new byte[16];
+    private int depth;
+
+    void push(byte type) {
+        if (++depth == types.length) {
+            types = Arrays.copyOf(types, 2 * depth);
+        }
+        types[depth] = type;
+    }
+
+    /**
+     * @return type of the container that is closed
+     */
+    byte pop() {
+        if (depth == 0) {
+            throw new NoSuchElementException();
+        }
+        return types[depth--];
+    }
+
+    /**
+     * @return type of the innermost open container, or {@link #NONE}
+     */
+    byte peek() {
+        return types[depth];
+    }
+
+    /**
+     * @return number of open containers
+     */
+    int depth() {
+        return depth;
+    }
+
+    void clear() {
+        depth = 0;
+    }
+}
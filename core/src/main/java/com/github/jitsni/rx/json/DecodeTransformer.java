@@ -0,0 +1,151 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.exceptions.Exceptions;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.MalformedInputException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Decodes UTF-8 byte buffers to char buffers, one char buffer for each byte
+ * buffer. A char that is split between two byte buffers is carried over to
+ * the next one. The byte buffers are not used after {@code onNext} returns,
+ * so they can be reused by the source, like {@link ChannelSource} does.
+ *
+ * <p>
+ * With a pool, the char buffers go back to it as soon as downstream's
+ * {@code onNext} returns, which suits {@link JsonTokenTransformer} as it is
+ * done with a buffer by then.
+ *
+ * @author Jitendra Kotamraju
+ */
+public class DecodeTransformer implements Observable.Transformer<ByteBuffer, CharBuffer> {
+    private BufferPool<CharBuffer> bufferPool;
+
+    /**
+     * Takes the char buffers from the pool instead of allocating them.
+     *
+     * @param pool buffer pool shared by all the subscriptions
+     * @return this transformer
+     */
+    public DecodeTransformer bufferPool(BufferPool<CharBuffer> pool) {
+        this.bufferPool = pool;
+        return this;
+    }
+
+    @Override
+    public Observable<CharBuffer> call(Observable<ByteBuffer> source) {
+        return Observable.create(new Observable.OnSubscribe<CharBuffer>() {
+            @Override
+            public void call(Subscriber<? super CharBuffer> subscriber) {
+                final BufferPool<CharBuffer> pool = bufferPool;
+                final CharsetDecoder decoder = UTF_8.newDecoder();
+                // Bytes of a char that continues in the next buffer
+                final ByteBuffer carry = ByteBuffer.allocate(4);
+
+                // Shares the subscriber's requests, as there is one char buffer per byte buffer
+                source.subscribe(new Subscriber<ByteBuffer>(subscriber) {
+                    private boolean done;
+
+                    @Override
+                    public void onCompleted() {
+                        if (done) {
+                            return;
+                        }
+                        if (carry.position() > 0) {
+                            onError(new MalformedInputException(carry.position()));
+                            return;
+                        }
+                        done = true;
+                        subscriber.onCompleted();
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        subscriber.onError(throwable);
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer bytes) {
+                        if (done) {
+                            return;
+                        }
+                        // A UTF-8 byte never decodes to more than one char
+                        int capacity = bytes.remaining() + carry.position();
+                        CharBuffer chars = pool == null ? CharBuffer.allocate(capacity) : pool.acquire(capacity);
+                        try {
+                            chars.clear();
+                            decode(bytes, chars);
+                        } catch (Throwable e) {
+                            if (pool != null) {
+                                pool.release(chars);
+                            }
+                            Exceptions.throwIfFatal(e);
+                            // Not unsubscribed here, the subscription is shared and the error must get through
+                            onError(e);
+                            return;
+                        }
+                        chars.flip();
+                        if (!chars.hasRemaining()) {
+                            // Only part of a char, nothing to emit for this one
+                            request(1);
+                        } else if (pool == null) {
+                            subscriber.onNext(chars);
+                        } else {
+                            try {
+                                subscriber.onNext(chars);
+                            } finally {
+                                pool.release(chars);
+                            }
+                        }
+                    }
+
+                    private void decode(ByteBuffer bytes, CharBuffer chars) throws CharacterCodingException {
+                        // Completes the carried over char a byte at a time
+                        while (carry.position() > 0 && bytes.hasRemaining()) {
+                            carry.put(bytes.get());
+                            carry.flip();
+                            check(decoder.decode(carry, chars, false));
+                            carry.compact();
+                        }
+                        check(decoder.decode(bytes, chars, false));
+                        carry.put(bytes);
+                    }
+                });
+            }
+        });
+    }
+
+    private static void check(CoderResult result) throws CharacterCodingException {
+        if (result.isError()) {
+            result.throwException();
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.exceptions.Exceptions;
+import rx.subscriptions.Subscriptions;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses byte buffers as they arrive, so that a compressed file can
+ * be parsed without decompressing all of it first:
+ * <pre>
+ * ChannelSource.read(path, pool, 64 * 1024)
+ *         .compose(new InflateTransformer())
+ *         .compose(new DecodeTransformer())
+ *         .compose(new JsonTokenTransformer())
+ * </pre>
+ * Output is emitted whenever an output buffer is full and at the end of
+ * every input buffer, so at most one output buffer is held. The input
+ * buffers are not used after {@code onNext} returns, and with a pool the
+ * output buffers go back to it as soon as downstream's {@code onNext}
+ * returns.
+ *
+ * @author Jitendra Kotamraju
+ */
+public class InflateTransformer implements Observable.Transformer<ByteBuffer, ByteBuffer> {
+
+    public enum Format {
+        /** gzip members (RFC 1952), one after the other like the gzip tool writes them */
+        GZIP,
+        /** a zlib stream (RFC 1950) */
+        ZLIB,
+        /** a raw deflate stream (RFC 1951) */
+        DEFLATE
+    }
+
+    private final Format format;
+    private BufferPool<ByteBuffer> bufferPool;
+    private int bufferSize = 64 * 1024;
+
+    public InflateTransformer() {
+        this(Format.GZIP);
+    }
+
+    public InflateTransformer(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Takes the output buffers from the pool instead of allocating them.
+     *
+     * @param pool buffer pool shared by all the subscriptions
+     * @return this transformer
+     */
+    public InflateTransformer bufferPool(BufferPool<ByteBuffer> pool) {
+        this.bufferPool = pool;
+        return this;
+    }
+
+    /**
+     * @param bufferSize bytes per output buffer, 64K by default
+     * @return this transformer
+     */
+    public InflateTransformer bufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    @Override
+    public Observable<ByteBuffer> call(Observable<ByteBuffer> source) {
+        return Observable.create(new Observable.OnSubscribe<ByteBuffer>() {
+            @Override
+            public void call(Subscriber<? super ByteBuffer> subscriber) {
+                InflateSubscriber inflate = new InflateSubscriber(subscriber, format, bufferPool, bufferSize);
+                subscriber.add(inflate);
+                source.subscribe(inflate);
+            }
+        });
+    }
+
+    private enum State {
+        HEADER,
+        INFLATE,
+        TRAILER,
+        DONE
+    }
+
+    private static final class InflateSubscriber extends Subscriber<ByteBuffer> {
+        private final Subscriber<? super ByteBuffer> subscriber;
+        private final Format format;
+        private final BufferPool<ByteBuffer> pool;
+        private final int bufferSize;
+        private final Inflater inflater;
+        private final CRC32 crc = new CRC32();
+        private State state;
+        private boolean done;
+
+        // gzip header or trailer bytes read so far, and the number of complete members
+        private byte[] header = new byte[64];
+        private int count;
+        private int members;
+
+        // Copies of direct input and output buffers
+        private byte[] input = new byte[0];
+        private byte[] output;
+        private ByteBuffer out;
+
+        InflateSubscriber(Subscriber<? super ByteBuffer> subscriber, Format format, BufferPool<ByteBuffer> pool,
+                          int bufferSize) {
+            this.subscriber = subscriber;
+            this.format = format;
+            this.pool = pool;
+            this.bufferSize = bufferSize;
+            this.inflater = new Inflater(format != Format.ZLIB);
+            this.state = format == Format.GZIP ? State.HEADER : State.INFLATE;
+            // The native memory of the inflater is freed as soon as it is not needed
+            add(Subscriptions.create(inflater::end));
+        }
+
+        @Override
+        public void onCompleted() {
+            if (done) {
+                return;
+            }
+            boolean complete = state == State.DONE || (state == State.HEADER && count == 0 && members > 0);
+            if (!complete) {
+                onError(new EOFException("Unexpected end of the compressed stream"));
+                return;
+            }
+            done = true;
+            inflater.end();
+            subscriber.onCompleted();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (done) {
+                return;
+            }
+            done = true;
+            release();
+            inflater.end();
+            subscriber.onError(throwable);
+        }
+
+        @Override
+        public void onNext(ByteBuffer buffer) {
+            if (done) {
+                return;
+            }
+            try {
+                int length = buffer.remaining();
+                if (buffer.hasArray()) {
+                    process(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                } else {
+                    if (input.length < length) {
+                        input = new byte[length];
+                    }
+                    buffer.duplicate().get(input, 0, length);
+                    process(input, 0, length);
+                }
+                buffer.position(buffer.limit());
+                emit();
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                unsubscribe();
+                onError(e);
+            }
+        }
+
+        private void process(byte[] bytes, int offset, int length) throws ZipException, DataFormatException {
+            while (true) {
+                switch (state) {
+                    case HEADER:
+                        if (length == 0) {
+                            return;
+                        }
+                        append(bytes[offset++]);
+                        length--;
+                        if (count >= 10 && gzipHeader(header, count) != -1) {
+                            count = 0;
+                            state = State.INFLATE;
+                        }
+                        break;
+                    case INFLATE:
+                        if (inflater.needsInput()) {
+                            if (length == 0) {
+                                return;
+                            }
+                            inflater.setInput(bytes, offset, length);
+                            offset += length;
+                            length = 0;
+                        }
+                        inflate();
+                        if (inflater.finished()) {
+                            // The input after the end of the compressed data
+                            int remaining = inflater.getRemaining();
+                            offset -= remaining;
+                            length += remaining;
+                            state = format == Format.GZIP ? State.TRAILER : State.DONE;
+                        }
+                        break;
+                    case TRAILER:
+                        if (length == 0) {
+                            return;
+                        }
+                        append(bytes[offset++]);
+                        length--;
+                        if (count == 8) {
+                            checkTrailer();
+                            inflater.reset();
+                            crc.reset();
+                            count = 0;
+                            members++;
+                            state = State.HEADER;
+                        }
+                        break;
+                    default:
+                        if (length > 0) {
+                            throw new ZipException("Unexpected data after the end of the compressed stream");
+                        }
+                        return;
+                }
+            }
+        }
+
+        // Inflates until the inflater needs more input or the compressed data ends
+        private void inflate() throws ZipException, DataFormatException {
+            while (true) {
+                if (out == null) {
+                    out = pool == null ? ByteBuffer.allocate(bufferSize) : pool.acquire(bufferSize);
+                    out.clear().limit(bufferSize);
+                }
+                int n;
+                if (out.hasArray()) {
+                    byte[] array = out.array();
+                    int offset = out.arrayOffset() + out.position();
+                    n = inflater.inflate(array, offset, out.remaining());
+                    crc.update(array, offset, n);
+                    out.position(out.position() + n);
+                } else {
+                    if (output == null) {
+                        output = new byte[bufferSize];
+                    }
+                    n = inflater.inflate(output, 0, out.remaining());
+                    crc.update(output, 0, n);
+                    out.put(output, 0, n);
+                }
+                if (!out.hasRemaining()) {
+                    emit();
+                } else if (n == 0) {
+                    if (inflater.finished() || inflater.needsInput()) {
+                        return;
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new ZipException("Compressed data that needs a preset dictionary is not supported");
+                    }
+                }
+            }
+        }
+
+        private void emit() {
+            if (out == null || out.position() == 0) {
+                return;
+            }
+            ByteBuffer buffer = out;
+            out = null;
+            buffer.flip();
+            try {
+                subscriber.onNext(buffer);
+            } finally {
+                if (pool != null) {
+                    pool.release(buffer);
+                }
+            }
+        }
+
+        private void release() {
+            if (out != null && pool != null) {
+                pool.release(out);
+            }
+            out = null;
+        }
+
+        private void append(byte b) {
+            if (count == header.length) {
+                header = Arrays.copyOf(header, 2 * count);
+            }
+            header[count++] = b;
+        }
+
+        // CRC-32 and size modulo 2^32 of the uncompressed data, little endian
+        private void checkTrailer() throws ZipException {
+            if (int32(header, 0) != crc.getValue()) {
+                throw new ZipException("Corrupt GZIP trailer, CRC-32 doesn't match");
+            }
+            if (int32(header, 4) != (inflater.getBytesWritten() & 0xFFFFFFFFL)) {
+                throw new ZipException("Corrupt GZIP trailer, size doesn't match");
+            }
+        }
+    }
+
+    /**
+     * @return length of the gzip header, or -1 if more bytes are needed
+     */
+    static int gzipHeader(byte[] header, int length) throws ZipException {
+        if ((header[0] & 0xFF) != 0x1F || (header[1] & 0xFF) != 0x8B) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (header[2] != 8) {
+            throw new ZipException("Unsupported compression method = " + header[2]);
+        }
+        int flags = header[3];
+        int i = 10;
+        if ((flags & 4) != 0) {                 // FEXTRA
+            if (length < i + 2) {
+                return -1;
+            }
+            i += 2 + ((header[i] & 0xFF) | (header[i + 1] & 0xFF) << 8);
+        }
+        if ((flags & 8) != 0) {                 // FNAME
+            i = afterZero(header, i, length);
+        }
+        if ((flags & 16) != 0) {                // FCOMMENT
+            i = afterZero(header, i, length);
+        }
+        if ((flags & 2) != 0) {                 // FHCRC
+            i += 2;
+        }
+        return i <= length ? i : -1;
+    }
+
+    // Position after the zero byte that ends a string, or past the length if there is none yet
+    private static int afterZero(byte[] header, int i, int length) {
+        for (; i < length; i++) {
+            if (header[i] == 0) {
+                return i + 1;
+            }
+        }
+        return length + 1;
+    }
+
+    private static long int32(byte[] b, int i) {
+        return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24;
+    }
+}
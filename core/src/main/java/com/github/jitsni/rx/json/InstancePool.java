@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded, shared pool of reusable instances. It isn't per-thread because
+ * an Rx subscription may start on one thread and end on another, so an
+ * instance is often given back on a different thread than the one that took
+ * it.
+ *
+ * @author Jitendra Kotamraju
+ */
+final class InstancePool<T> {
+    private final ArrayBlockingQueue<T> instances;
+
+    /**
+     * @param capacity number of idle instances that are kept at most
+     */
+    InstancePool(int capacity) {
+        this.instances = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return an idle instance, or null if there is none
+     */
+    T poll() {
+        return instances.poll();
+    }
+
+    /**
+     * Gives back an instance that is reset and not used anymore. It is
+     * dropped if the pool is full.
+     */
+    void offer(T instance) {
+        instances.offer(instance);
+    }
+}
@@ -38,6 +38,10 @@ public final class JsonArray implements JsonValue {
         values.add(value);
     }
 
+    List<JsonValue> values() {
+        return values;
+    }
+
     @Override
     public Observable<JsonValue> observable() {
         return Observable.from(values);
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.exceptions.Exceptions;
+
+/**
+ * Like {@link JsonValueTransformer}, but takes the tokens in batches from
+ * {@link JsonTokenBatchTransformer}.
+ *
+ * @author Jitendra Kotamraju
+ */
+public class JsonBatchValueTransformer implements Observable.Transformer<JsonTokenBatch, JsonValue> {
+
+    @Override
+    public Observable<JsonValue> call(Observable<JsonTokenBatch> source) {
+        return Observable.create(new Observable.OnSubscribe<JsonValue>() {
+            @Override
+            public void call(Subscriber<? super JsonValue> subscriber) {
+                final JsonValuer valuer = new JsonValuer(subscriber);
+
+                Subscriber<JsonTokenBatch> batchSubscriber = new Subscriber<JsonTokenBatch>() {
+                    private boolean done;
+
+                    @Override
+                    public void onCompleted() {
+                        if (done) {
+                            return;
+                        }
+                        try {
+                            valuer.finish();
+                        } catch (JsonParseException e) {
+                            onError(e);
+                            return;
+                        }
+                        done = true;
+                        subscriber.onCompleted();
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        subscriber.onError(throwable);
+                    }
+
+                    @Override
+                    public void onNext(JsonTokenBatch batch) {
+                        if (done) {
+                            return;
+                        }
+                        try {
+                            for (int i = 0, n = batch.size(); i < n; i++) {
+                                valuer.parse(batch.token(i));
+                            }
+                        } catch (Throwable e) {
+                            Exceptions.throwIfFatal(e);
+                            unsubscribe();
+                            onError(e);
+                        }
+                    }
+                };
+                subscriber.add(batchSubscriber);
+                source.subscribe(batchSubscriber);
+            }
+        });
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jitsni.rx.json;
+import rx.Observable;
+import rx.Subscriber;
+import rx.exceptions.Exceptions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes buffers written by {@link JsonBinaryEncoder} back to values. Use
+ * {@link #tokens()} to get the tokens of the values instead, which can feed
+ * the same downstream stages as {@link JsonTokenTransformer}.
+ *
+ * @author Jitendra Kotamraju
+ */
+public class JsonBinaryDecoder implements Observable.Transformer<ByteBuffer, JsonValue> {
+
+    @Override
+    public Observable<JsonValue> call(Observable<ByteBuffer> source) {
+        Observable<JsonValue> valueObservable = Observable.create(new Observable.OnSubscribe<JsonValue>() {
+            @Override
+            public void call(Subscriber<? super JsonValue> subscriber) {
+                final BinaryReader reader = new BinaryReader();
+
+                Subscriber<ByteBuffer> bufferSubscriber = new Subscriber<ByteBuffer>() {
+                    private boolean done;
+
+                    @Override
+                    public void onCompleted() {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        subscriber.onCompleted();
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        subscriber.onError(throwable);
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer buffer) {
+                        if (done) {
+                            return;
+                        }
+                        try {
+                            subscriber.onNext(reader.value(buffer));
+                        } catch (Throwable e) {
+                            Exceptions.throwIfFatal(e);
+                            unsubscribe();
+                            onError(e);
+                        }
+                    }
+                };
+                subscriber.add(bufferSubscriber);
+                source.subscribe(bufferSubscriber);
+            }
+        });
+
+        return valueObservable;
+    }
+
+    /**
+     * @return transformer that decodes buffers to the tokens of their values
+     */
+    public static Observable.Transformer<ByteBuffer, JsonToken> tokens() {
+        return source -> Observable.create(new Observable.OnSubscribe<JsonToken>() {
+            @Override
+            public void call(Subscriber<? super JsonToken> subscriber) {
+                final BinaryReader reader = new BinaryReader();
+
+                Subscriber<ByteBuffer> bufferSubscriber = new Subscriber<ByteBuffer>() {
+                    private boolean done;
+
+                    @Override
+                    public void onCompleted() {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        subscriber.onCompleted();
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        subscriber.onError(throwable);
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer buffer) {
+                        if (done) {
+                            return;
+                        }
+                        try {
+                            reader.tokens(buffer, subscriber);
+                        } catch (Throwable e) {
+                            Exceptions.throwIfFatal(e);
+                            unsubscribe();
+                            onError(e);
+                        }
+                    }
+                };
+                subscriber.add(bufferSubscriber);
+                source.subscribe(bufferSubscriber);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.jitsni.rx.json;
+import rx.Observable;
+import rx.Subscriber;
+import rx.exceptions.Exceptions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes every value to a buffer in a compact binary format, so that values
+ * can be cached or passed between stages without going back to JSON text.
+ * {@link JsonBinaryDecoder} reads the buffers back.
+ *
+ * @author Jitendra Kotamraju
+ */
+public class JsonBinaryEncoder implements Observable.Transformer<JsonValue, ByteBuffer> {
+    private BufferPool<ByteBuffer> bufferPool;
+
+    /**
+     * Takes the scratch buffer, that a value is written to before it is
+     * copied to its own buffer, from the pool instead of allocating it.
+     *
+     * @param pool buffer pool shared by all the subscriptions
+     * @return this transformer
+     */
+    public JsonBinaryEncoder bufferPool(BufferPool<ByteBuffer> pool) {
+        this.bufferPool = pool;
+        return this;
+    }
+
+    @Override
+    public Observable<ByteBuffer> call(Observable<JsonValue> source) {
+        Observable<ByteBuffer> bufferObservable = Observable.create(new Observable.OnSubscribe<ByteBuffer>() {
+            @Override
+            public void call(Subscriber<? super ByteBuffer> subscriber) {
+                final BinaryWriter writer = new BinaryWriter(bufferPool);
+
+                Subscriber<JsonValue> valueSubscriber = new Subscriber<JsonValue>() {
+                    private boolean done;
+
+                    @Override
+                    public void onCompleted() {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        writer.close();
+                        subscriber.onCompleted();
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        writer.close();
+                        subscriber.onError(throwable);
+                    }
+
+                    @Override
+                    public void onNext(JsonValue value) {
+                        if (done) {
+                            return;
+                        }
+                        try {
+                            subscriber.onNext(writer.encode(value));
+                        } catch (Throwable e) {
+                            Exceptions.throwIfFatal(e);
+                            unsubscribe();
+                            onError(e);
+                        }
+                    }
+                };
+                subscriber.add(valueSubscriber);
+                source.subscribe(valueSubscriber);
+            }
+        });
+
+        return bufferObservable;
+    }
+
+}
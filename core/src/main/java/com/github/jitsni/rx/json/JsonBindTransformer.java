@@ -0,0 +1,51 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import rx.Observable;
+
+/**
+ * Binds tokens directly to objects of a class, without building
+ * {@link JsonValue}s in between. Top-level objects are emitted as they are
+ * completed, and so are the elements of a top-level array. Number tokens are
+ * parsed straight into primitive fields.
+ *
+ * <p>
+ * The class needs a no-arg constructor, and its fields are set by name; see
+ * the supported field types in the class doc of {@code JsonBinding}. The
+ * fields of a class are looked up once and cached, and the tokens are
+ * decoded like with a {@link JsonDecodeTransformer}.
+ *
+ * @author Jitendra Kotamraju
+ */
+public class JsonBindTransformer<T> implements Observable.Transformer<JsonToken, T> {
+    private final JsonTypeCodec<T> codec;
+
+    /**
+     * @throws IllegalArgumentException if the class can't be bound
+     */
+    @SuppressWarnings("unchecked")
+    public JsonBindTransformer(Class<T> type) {
+        this.codec = (JsonTypeCodec<T>) (JsonTypeCodec<?>) JsonBinding.of(type);
+    }
+
+    @Override
+    public Observable<T> call(Observable<JsonToken> source) {
+        return source.compose(new JsonDecodeTransformer<>(codec));
+    }
+
+}
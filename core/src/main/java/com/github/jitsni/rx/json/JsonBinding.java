@@ -0,0 +1,338 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link JsonTypeCodec} that sets the fields of a class with reflection, so
+ * that bound classes are decoded by the same {@link JsonDecoder} as the
+ * generated codecs. It has a constructor handle and a property for every
+ * field, and is created once per class and cached. It only decodes.
+ *
+ * <p>
+ * A bound class needs a no-arg constructor, which may be private. Its
+ * non-static, non-transient fields, including the inherited ones, are set
+ * by name using method handles, so primitive fields are set without boxing.
+ * Supported field types are the primitives except char, their boxes,
+ * String, BigDecimal, BigInteger, enums (by name), other bound classes and
+ * Lists of any of these, but not Lists of Lists.
+ *
+ * @author Jitendra Kotamraju
+ */
+final class JsonBinding extends JsonTypeCodec<Object> {
+    private static final ClassValue<JsonBinding> CACHE = new ClassValue<JsonBinding>() {
+        @Override
+        protected JsonBinding computeValue(Class<?> type) {
+            return new JsonBinding(type);
+        }
+    };
+
+    private static final MethodType SET = MethodType.methodType(void.class, Object.class, Object.class);
+
+    enum Kind {
+        BOOLEAN,
+        INT,
+        LONG,
+        DOUBLE,
+        FLOAT,
+        SHORT,
+        BYTE,
+        // The kinds below are set as objects
+        BOXED,
+        STRING,
+        BIG_DECIMAL,
+        BIG_INTEGER,
+        ENUM,
+        OBJECT,
+        LIST
+    }
+
+    final Class<?> type;
+    private final MethodHandle constructor;
+    // Key tokens are matched with the key set, without creating a String
+    private final JsonKeySet keys;
+    private final Property[] properties;
+
+    private JsonBinding(Class<?> type) {
+        this.type = type;
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        Map<String, Property> byName = new LinkedHashMap<>();
+        try {
+            Constructor<?> c = type.getDeclaredConstructor();
+            c.setAccessible(true);
+            constructor = lookup.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+            for (Class<?> t = type; t != Object.class; t = t.getSuperclass()) {
+                for (Field field : t.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    MethodHandle setter = lookup.unreflectSetter(field);
+                    Property property = property(field.getName(), field.getGenericType(), setter, true);
+                    // A field hides the ones of its superclasses
+                    byName.putIfAbsent(property.name, property);
+                }
+            }
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(type + " needs a no-arg constructor to be bound", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(type + " can't be bound", e);
+        }
+        keys = JsonKeySet.of(byName.keySet().toArray(new String[0]));
+        properties = byName.values().toArray(new Property[0]);
+    }
+
+    static JsonBinding of(Class<?> type) {
+        return CACHE.get(type);
+    }
+
+    @Override
+    protected Object newInstance() {
+        try {
+            return (Object) constructor.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Can't create " + type.getName(), e);
+        }
+    }
+
+    @Override
+    protected int field(CharBuffer key, int hash) {
+        int index = keys.index(key, hash);
+        return index == JsonKeySet.UNKNOWN ? -1 : index;
+    }
+
+    @Override
+    protected int shape(int field) {
+        switch (properties[field].kind) {
+            case OBJECT:
+                return JsonTypeCodec.OBJECT;
+            case LIST:
+                return JsonTypeCodec.LIST;
+            default:
+                return JsonTypeCodec.SCALAR;
+        }
+    }
+
+    // Primitives go through handles of their exact type so they are not boxed
+    @Override
+    protected void set(Object object, int field, JsonToken token) {
+        Property property = properties[field];
+        String name = property.name;
+        try {
+            switch (property.kind) {
+                case BOOLEAN:
+                    property.setter.invokeExact(object, booleanValue(token, name));
+                    return;
+                case INT:
+                    property.setter.invokeExact(object, intValue(token, name));
+                    return;
+                case LONG:
+                    property.setter.invokeExact(object, longValue(token, name));
+                    return;
+                case SHORT:
+                    property.setter.invokeExact(object, shortValue(token, name));
+                    return;
+                case BYTE:
+                    property.setter.invokeExact(object, byteValue(token, name));
+                    return;
+                case DOUBLE:
+                    property.setter.invokeExact(object, doubleValue(token, name));
+                    return;
+                case FLOAT:
+                    property.setter.invokeExact(object, floatValue(token, name));
+                    return;
+                default:
+                    property.setter.invokeExact(object, value(property, token));
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Can't set " + name, e);
+        }
+    }
+
+    @Override
+    protected void set(Object object, int field, Object value) {
+        Property property = properties[field];
+        try {
+            property.setter.invokeExact(object, value);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Can't set " + property.name, e);
+        }
+    }
+
+    @Override
+    protected Object element(int field, JsonToken token) {
+        return value(properties[field].element, token);
+    }
+
+    // Looked up when needed, a class may have fields of its own type
+    @Override
+    protected JsonTypeCodec<?> codec(int field) {
+        Property property = properties[field];
+        if (property.kind == Kind.LIST) {
+            property = property.element;
+        }
+        return property.kind == Kind.OBJECT ? of(property.type) : null;
+    }
+
+    @Override
+    public void encode(Object object, StringBuilder out) {
+        throw new UnsupportedOperationException("A binding only decodes " + type.getName());
+    }
+
+    // A scalar as an object of the property's type, null stays null
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object value(Property property, JsonToken token) {
+        if (isNull(token)) {
+            return null;
+        }
+        String name = property.name;
+        switch (property.kind) {
+            case BOXED:
+                return boxed(token, property);
+            case STRING:
+                return stringValue(token, name);
+            case BIG_DECIMAL:
+                return bigDecimalValue(token, name);
+            case BIG_INTEGER:
+                return bigIntegerValue(token, name);
+            case ENUM:
+                return enumValue((Class) property.type, token, name);
+            default:
+                throw new JsonParseException("Unexpected " + token + " for " + name + " of type "
+                        + property.type.getSimpleName(), token.start(), -1, -1);
+        }
+    }
+
+    private static Object boxed(JsonToken token, Property property) {
+        Class<?> type = property.type;
+        String name = property.name;
+        if (type == Boolean.class) {
+            return booleanValue(token, name);
+        } else if (type == Integer.class) {
+            return intValue(token, name);
+        } else if (type == Long.class) {
+            return longValue(token, name);
+        } else if (type == Short.class) {
+            return shortValue(token, name);
+        } else if (type == Byte.class) {
+            return byteValue(token, name);
+        } else if (type == Double.class) {
+            return doubleValue(token, name);
+        } else {
+            return floatValue(token, name);
+        }
+    }
+
+    // A list's element may not be a list, there is no such shape for the decoder
+    private static Property property(String name, Type type, MethodHandle setter, boolean list) {
+        Class<?> raw = type instanceof ParameterizedType
+                ? (Class<?>) ((ParameterizedType) type).getRawType()
+                : type instanceof Class ? (Class<?>) type : null;
+        if (raw == null) {
+            throw new IllegalArgumentException("Unsupported type " + type + " of " + name);
+        }
+        Kind kind;
+        Property element = null;
+        if (raw == boolean.class) {
+            kind = Kind.BOOLEAN;
+        } else if (raw == int.class) {
+            kind = Kind.INT;
+        } else if (raw == long.class) {
+            kind = Kind.LONG;
+        } else if (raw == double.class) {
+            kind = Kind.DOUBLE;
+        } else if (raw == float.class) {
+            kind = Kind.FLOAT;
+        } else if (raw == short.class) {
+            kind = Kind.SHORT;
+        } else if (raw == byte.class) {
+            kind = Kind.BYTE;
+        } else if (raw == Boolean.class || raw == Integer.class || raw == Long.class || raw == Double.class
+                || raw == Float.class || raw == Short.class || raw == Byte.class) {
+            kind = Kind.BOXED;
+        } else if (raw == String.class) {
+            kind = Kind.STRING;
+        } else if (raw == BigDecimal.class) {
+            kind = Kind.BIG_DECIMAL;
+        } else if (raw == BigInteger.class) {
+            kind = Kind.BIG_INTEGER;
+        } else if (raw.isEnum()) {
+            kind = Kind.ENUM;
+        } else if (List.class.isAssignableFrom(raw) && raw.isAssignableFrom(ArrayList.class)) {
+            if (!list) {
+                throw new IllegalArgumentException("Unsupported list of lists " + name);
+            }
+            if (!(type instanceof ParameterizedType)) {
+                throw new IllegalArgumentException("Element type of " + name + " is not known");
+            }
+            kind = Kind.LIST;
+            element = property(name, ((ParameterizedType) type).getActualTypeArguments()[0], null, false);
+        } else if (raw.isPrimitive() || raw.isArray() || raw.isInterface() || raw == Character.class) {
+            throw new IllegalArgumentException("Unsupported type " + type + " of " + name);
+        } else {
+            kind = Kind.OBJECT;
+        }
+        if (setter != null && kind.compareTo(Kind.BOXED) >= 0) {
+            setter = setter.asType(SET);
+        } else if (setter != null) {
+            setter = setter.asType(MethodType.methodType(void.class, Object.class, raw));
+        }
+        return new Property(name, kind, raw, setter, element);
+    }
+
+    /**
+     * A field, or the element type of a list when there is no setter.
+     */
+    static final class Property {
+        final String name;
+        final Kind kind;
+        final Class<?> type;
+        // (Object, field type)void for primitives, (Object, Object)void for the rest
+        final MethodHandle setter;
+        final Property element;
+
+        Property(String name, Kind kind, Class<?> type, MethodHandle setter, Property element) {
+            this.name = name;
+            this.kind = kind;
+            this.type = type;
+            this.setter = setter;
+            this.element = element;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jitsni.rx.json;
+
+import java.nio.CharBuffer;
+
+/**
+ * A string or number value as the sequence of its chars. The chars are
+ * either a view of a shared char array, like the tokenizer's storage, or a
+ * String.
+ *
+ * <p>
+ * A view creates a String only in {@link #toString()}, and keeps it.
+ * Reading the chars, or comparing them with {@link #contentEquals},
+ * {@link #equals} or {@link #hashCode}, doesn't create one. A view keeps the
+ * whole shared array reachable.
+ *
+ * @author Jitendra Kotamraju
+ */
+abstract class JsonCharSequence implements JsonValue, CharSequence {
+
+    // The shared chars, unless the value was created from a String
+    private final char[] chars;
+    private final int offset;
+    private final int length;
+    private String value;
+    private int hash;
+
+    JsonCharSequence(String value) {
+        this.chars = null;
+        this.offset = 0;
+        this.length = value.length();
+        this.value = value;
+    }
+
+    JsonCharSequence(char[] chars, int offset, int length, int hash) {
+        this.chars = chars;
+        this.offset = offset;
+        this.length = length;
+        this.hash = hash;
+    }
+
+    /**
+     * @return true if the chars of the token can be viewed, see
+     *      {@link JsonToken#stable()}. Otherwise they have to be copied.
+     */
+    static boolean viewable(JsonToken token) {
+        return token.stable() && token.buffer().hasArray();
+    }
+
+    // Start of the token's chars in the array of its buffer
+    static int offset(CharBuffer buffer) {
+        return buffer.arrayOffset() + buffer.position();
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (chars == null) {
+            return value.charAt(index);
+        }
+        if (index < 0 || index >= length) {
+            throw new StringIndexOutOfBoundsException(index);
+        }
+        return chars[offset + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (chars == null) {
+            return value.subSequence(start, end);
+        }
+        if (start < 0 || end > length || start > end) {
+            throw new StringIndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+        return CharBuffer.wrap(chars, offset + start, end - start).asReadOnlyBuffer();
+    }
+
+    /**
+     * Compares the chars of this value with the given ones, without
+     * creating a String.
+     *
+     * @return true if they are the same chars
+     */
+    public boolean contentEquals(CharSequence cs) {
+        if (cs.length() != length) {
+            return false;
+        }
+        if (chars == null) {
+            return value.contentEquals(cs);
+        }
+        for (int i = 0; i < length; i++) {
+            if (chars[offset + i] != cs.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Same chars, the caller checks that the other value is of the same type
+    boolean sameChars(JsonCharSequence other) {
+        return length == other.length && hashCode() == other.hashCode() && contentEquals(other);
+    }
+
+    /**
+     * @return the same hash as {@link String#hashCode()} of the chars
+     */
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0 && length > 0) {
+            if (chars == null) {
+                h = value.hashCode();
+            } else {
+                for (int i = offset, end = offset + length; i < end; i++) {
+                    h = 31 * h + chars[i];
+                }
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        String s = value;
+        if (s == null) {
+            s = new String(chars, offset, length);
+            value = s;
+        }
+        return s;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class for which the rxjson annotation processor generates a
+ * {@link JsonTypeCodec} at compile time. For a class {@code Foo} the codec is
+ * {@code FooJsonCodec} in the same package (nested classes are prefixed with
+ * their enclosing classes, like {@code Outer_InnerJsonCodec}), and is used as
+ * {@code FooJsonCodec.INSTANCE}.
+ *
+ * <p>
+ * The class needs a no-arg constructor that is not private. Its non-private,
+ * non-static, non-transient fields are bound by name; they can be primitives
+ * except char, their boxes, String, BigDecimal, BigInteger, enums, other
+ * {@code @JsonCodec} classes and Lists of any of these.
+ *
+ * @author Jitendra Kotamraju
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface JsonCodec {
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.exceptions.Exceptions;
+
+/**
+ * Decodes tokens to objects with a {@link JsonTypeCodec}, usually one that is
+ * generated for a {@link JsonCodec} class. It works like
+ * {@link JsonBindTransformer}, but without any reflection:
+ * <pre>
+ * tokens.compose(new JsonDecodeTransformer&lt;&gt;(FooJsonCodec.INSTANCE))
+ * </pre>
+ *
+ * @author Jitendra Kotamraju
+ */
+public class JsonDecodeTransformer<T> implements Observable.Transformer<JsonToken, T> {
+    private final JsonTypeCodec<T> codec;
+
+    public JsonDecodeTransformer(JsonTypeCodec<T> codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public Observable<T> call(Observable<JsonToken> source) {
+        return Observable.create(new Observable.OnSubscribe<T>() {
+            @Override
+            public void call(Subscriber<? super T> subscriber) {
+                final JsonDecoder<T> decoder = new JsonDecoder<>(codec, subscriber);
+
+                Subscriber<JsonToken> tokenSubscriber = new Subscriber<JsonToken>() {
+                    private boolean done;
+
+                    @Override
+                    public void onCompleted() {
+                        if (done) {
+                            return;
+                        }
+                        try {
+                            decoder.finish();
+                        } catch (JsonParseException e) {
+                            onError(e);
+                            return;
+                        }
+                        done = true;
+                        subscriber.onCompleted();
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        subscriber.onError(throwable);
+                    }
+
+                    @Override
+                    public void onNext(JsonToken token) {
+                        if (done) {
+                            return;
+                        }
+                        try {
+                            decoder.parse(token);
+                        } catch (Throwable e) {
+                            Exceptions.throwIfFatal(e);
+                            unsubscribe();
+                            onError(e);
+                        }
+                    }
+                };
+                subscriber.add(tokenSubscriber);
+                source.subscribe(tokenSubscriber);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import rx.Subscriber;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives a {@link JsonTypeCodec} with tokens, a generated one or a
+ * {@link JsonBinding}. The top-level values must be objects, or arrays of
+ * objects whose elements are emitted one by one, and keys without a field
+ * are skipped along with their values.
+ *
+ * @author Jitendra Kotamraju
+ */
+final class JsonDecoder<T> {
+    private final Subscriber<? super T> subscriber;
+    private final JsonTypeCodec<T> codec;
+    private final RootFrame root;
+    private Frame frame;
+
+    JsonDecoder(JsonTypeCodec<T> codec, Subscriber<? super T> subscriber) {
+        this.subscriber = subscriber;
+        this.codec = codec;
+        this.root = new RootFrame();
+        this.frame = root;
+    }
+
+    void parse(JsonToken token) {
+        frame.parse(token);
+    }
+
+    /**
+     * Called at the end of the tokens, fails if an object is unfinished.
+     */
+    void finish() {
+        if (frame != root || root.array) {
+            throw new JsonParseException("Unexpected end of tokens", -1, -1, -1);
+        }
+    }
+
+    private abstract class Frame {
+        Frame next;
+
+        abstract void parse(JsonToken token);
+
+        abstract void add(Object value);
+
+        void push(Frame frame) {
+            frame.next = this;
+            JsonDecoder.this.frame = frame;
+        }
+
+        void pop(Object value) {
+            frame = next;
+            if (value != null) {
+                next.add(value);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void startObject(JsonToken token, JsonTypeCodec<?> codec) {
+            if (codec == null) {
+                throw new JsonParseException("Unexpected token " + token, token.start(), -1, -1);
+            }
+            push(new ObjectFrame((JsonTypeCodec<Object>) codec));
+        }
+    }
+
+    private final class RootFrame extends Frame {
+        private boolean array;
+
+        @Override
+        void parse(JsonToken token) {
+            switch (token.event()) {
+                case START_OBJECT:
+                    startObject(token, codec);
+                    break;
+                case START_ARRAY:
+                    if (array) {
+                        throw expecting(token);
+                    }
+                    array = true;
+                    break;
+                case END_ARRAY:
+                    array = false;
+                    break;
+                default:
+                    throw expecting(token);
+            }
+        }
+
+        private JsonParseException expecting(JsonToken token) {
+            return new JsonParseException("Expecting an object but got = " + token, token.start(), -1, -1);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void add(Object value) {
+            subscriber.onNext((T) value);
+        }
+    }
+
+    private final class ObjectFrame extends Frame {
+        private final JsonTypeCodec<Object> codec;
+        private final Object object;
+        private int field = -1;
+
+        ObjectFrame(JsonTypeCodec<Object> codec) {
+            this.codec = codec;
+            this.object = codec.newInstance();
+        }
+
+        @Override
+        void parse(JsonToken token) {
+            switch (token.event()) {
+                case KEY:
+                    field = codec.field(token.buffer(), token.hash());
+                    break;
+                case START_OBJECT:
+                    if (field == -1) {
+                        push(new SkipFrame());
+                    } else if (codec.shape(field) == JsonTypeCodec.OBJECT) {
+                        startObject(token, codec.codec(field));
+                    } else {
+                        codec.set(object, field, token);
+                    }
+                    break;
+                case START_ARRAY:
+                    if (field == -1) {
+                        push(new SkipFrame());
+                    } else if (codec.shape(field) == JsonTypeCodec.LIST) {
+                        push(new ListFrame(codec, field));
+                    } else {
+                        codec.set(object, field, token);
+                    }
+                    break;
+                case END_OBJECT:
+                    pop(object);
+                    break;
+                case END_ARRAY:
+                    throw new JsonParseException("Unexpected token " + token, token.start(), -1, -1);
+                default:
+                    if (field != -1) {
+                        codec.set(object, field, token);
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        void add(Object value) {
+            codec.set(object, field, value);
+        }
+    }
+
+    private final class ListFrame extends Frame {
+        private final JsonTypeCodec<?> codec;
+        private final int field;
+        private final List<Object> list = new ArrayList<>();
+
+        ListFrame(JsonTypeCodec<?> codec, int field) {
+            this.codec = codec;
+            this.field = field;
+        }
+
+        @Override
+        void parse(JsonToken token) {
+            switch (token.event()) {
+                case START_OBJECT:
+                    startObject(token, codec.codec(field));
+                    break;
+                case END_ARRAY:
+                    pop(list);
+                    break;
+                case START_ARRAY:
+                case KEY:
+                case END_OBJECT:
+                    throw new JsonParseException("Unexpected token " + token, token.start(), -1, -1);
+                default:
+                    list.add(codec.element(field, token));
+                    break;
+            }
+        }
+
+        @Override
+        void add(Object value) {
+            list.add(value);
+        }
+    }
+
+    // Skips a value that has no field
+    private final class SkipFrame extends Frame {
+        private int depth;
+
+        @Override
+        void parse(JsonToken token) {
+            switch (token.event()) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    depth++;
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    if (depth-- == 0) {
+                        pop(null);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        void add(Object value) {
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import rx.Subscriber;
+import rx.observers.Subscribers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Random access to the records of a JSON file using the sidecar index
+ * written by {@link JsonIndexBuilder}. Reading a record seeks to it and
+ * parses only its bytes. It is safe to read records from many threads.
+ *
+ * @author Jitendra Kotamraju
+ */
+public final class JsonIndex implements Closeable {
+    private final FileChannel channel;
+    // Start and end byte offsets of the records
+    private final long[] offsets;
+    private final Map<String, Integer> keys;
+
+    private JsonIndex(FileChannel channel, long[] offsets, Map<String, Integer> keys) {
+        this.channel = channel;
+        this.offsets = offsets;
+        this.keys = keys;
+    }
+
+    /**
+     * @param json file that was indexed
+     * @param index sidecar file written by {@link JsonIndexBuilder#build(Path, Path)}
+     * @throws IOException if the index is not valid, or the file has changed
+     *      its size since it was indexed
+     */
+    public static JsonIndex open(Path json, Path index) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(index));
+        if (in.remaining() < 12 || in.getInt() != JsonIndexBuilder.MAGIC) {
+            throw new IOException("Not a JSON index: " + index);
+        }
+        long size = in.getLong();
+        int count = (int) varint(in);
+        long[] offsets = new long[2 * count];
+        long end = 0;
+        for (int i = 0; i < count; i++) {
+            offsets[2 * i] = end + varint(in);
+            offsets[2 * i + 1] = end = offsets[2 * i] + varint(in);
+        }
+        Map<String, Integer> keys = null;
+        if (in.get() == 1) {
+            keys = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                int length = (int) varint(in);
+                if (length > 0) {
+                    String key = Utf8.decode(in, in.position(), length - 1);
+                    in.position(in.position() + length - 1);
+                    keys.putIfAbsent(key, i);
+                }
+            }
+        }
+
+        FileChannel channel = FileChannel.open(json, StandardOpenOption.READ);
+        if (channel.size() != size) {
+            channel.close();
+            throw new IOException(json + " has changed since it was indexed");
+        }
+        return new JsonIndex(channel, offsets, keys);
+    }
+
+    /**
+     * @return number of records
+     */
+    public int size() {
+        return offsets.length / 2;
+    }
+
+    /**
+     * @return byte offset of the record in the file
+     */
+    public long offset(int record) {
+        check(record);
+        return offsets[2 * record];
+    }
+
+    /**
+     * @return byte length of the record in the file
+     */
+    public long length(int record) {
+        check(record);
+        return offsets[2 * record + 1] - offsets[2 * record];
+    }
+
+    /**
+     * Reads and parses only the given record.
+     */
+    public JsonValue get(int record) throws IOException {
+        long offset = offset(record);
+        ByteBuffer bytes = ByteBuffer.allocate((int) length(record));
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, offset + bytes.position()) == -1) {
+                throw new IOException("Unexpected end of file in record " + record);
+            }
+        }
+        bytes.flip();
+        return parse(UTF_8.newDecoder().decode(bytes));
+    }
+
+    /**
+     * Looks up the first record whose key field has the given value.
+     *
+     * @return the record, or null if there is no such record
+     * @throws IllegalStateException if the index was built without a key field
+     */
+    public JsonValue find(String key) throws IOException {
+        if (keys == null) {
+            throw new IllegalStateException("Index has no keys");
+        }
+        Integer record = keys.get(key);
+        return record == null ? null : get(record);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static JsonValue parse(CharBuffer chars) {
+        JsonValue[] value = new JsonValue[1];
+        JsonValuer valuer = new JsonValuer(Subscribers.create(v -> value[0] = v));
+        Subscriber<JsonToken> tokens = Subscribers.create(valuer::parse);
+        JsonTokenizer tokenizer = new JsonTokenizer(tokens);
+        tokenizer.parse(chars);
+        tokenizer.finish();
+        return value[0];
+    }
+
+    private void check(int record) {
+        if (record < 0 || record >= size()) {
+            throw new IndexOutOfBoundsException("record = " + record + " size = " + size());
+        }
+    }
+
+    private static long varint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
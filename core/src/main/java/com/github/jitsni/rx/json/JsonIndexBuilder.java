@@ -0,0 +1,297 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import rx.Subscriber;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Makes one pass over a UTF-8 JSON file and writes a sidecar index of its
+ * records, so that {@link JsonIndex} can later read a record without
+ * reading the file up to it. A record is a top-level value, as in newline
+ * delimited JSON, or an element of a top-level array with
+ * {@link #arrayElements(boolean)}.
+ *
+ * <p>
+ * Index format:
+ * <pre>
+ * index  : MAGIC int, file byte size long, varint(count), record*, keys
+ * record : varint(byte offset - end of the previous record), varint(byte length)
+ * keys   : 0 | 1 (varint(key byte length + 1) utf-8 bytes | 0 if no key)*
+ * </pre>
+ *
+ * @author Jitendra Kotamraju
+ */
+public final class JsonIndexBuilder {
+    static final int MAGIC = 0x524A5831;          // "RJX1"
+
+    private static final int CHUNK = 64 * 1024;
+
+    private String keyField;
+    private boolean arrayElements;
+
+    /**
+     * Also indexes the records by the value of the given field, so that
+     * they can be looked up with {@link JsonIndex#find(String)}. Only
+     * string and number values of the record's own field are used.
+     *
+     * @param keyField name of a field of the records
+     * @return this builder
+     */
+    public JsonIndexBuilder keyField(String keyField) {
+        this.keyField = keyField;
+        return this;
+    }
+
+    /**
+     * @param arrayElements true if the records are the elements of a
+     *      top-level array, false (the default) if they are the top-level values
+     * @return this builder
+     */
+    public JsonIndexBuilder arrayElements(boolean arrayElements) {
+        this.arrayElements = arrayElements;
+        return this;
+    }
+
+    /**
+     * Indexes the file.
+     *
+     * @param json UTF-8 file with the records
+     * @param index sidecar file to write, it is replaced if it exists
+     * @return number of records
+     * @throws JsonParseException if the file isn't valid JSON
+     */
+    public int build(Path json, Path index) throws IOException {
+        Indexer indexer = new Indexer(arrayElements ? 1 : 0);
+        JsonTokenizer tokenizer = new JsonTokenizer(indexer, null, JsonLimits.NONE, null, true);
+        long size;
+        try (FileChannel channel = FileChannel.open(json, StandardOpenOption.READ)) {
+            size = channel.size();
+            CharsetDecoder decoder = UTF_8.newDecoder();
+            ByteBuffer bytes = ByteBuffer.allocateDirect(CHUNK);
+            long decoded = 0;
+            boolean eof = false;
+            while (!eof) {
+                eof = channel.read(bytes) == -1;
+                bytes.flip();
+                // A UTF-8 byte never decodes to more than one char, so the chars always fit
+                CharBuffer chars = CharBuffer.allocate(CHUNK);
+                int remaining = bytes.remaining();
+                CoderResult result = decoder.decode(bytes, chars, eof);
+                if (result.isError()) {
+                    result.throwException();
+                }
+                if (eof) {
+                    decoder.flush(chars);
+                }
+                chars.flip();
+                indexer.chunk(chars.duplicate(), decoded);
+                decoded += remaining - bytes.remaining();
+                bytes.compact();
+                tokenizer.parse(chars);
+            }
+            tokenizer.finish();
+        }
+        write(index, size, indexer);
+        return indexer.count;
+    }
+
+    private void write(Path index, long size, Indexer indexer) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(index)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(size);
+            varint(out, indexer.count);
+            long end = 0;
+            for (int i = 0; i < indexer.count; i++) {
+                long offset = indexer.offsets[2 * i];
+                long length = indexer.offsets[2 * i + 1] - offset;
+                varint(out, offset - end);
+                varint(out, length);
+                end = offset + length;
+            }
+            if (keyField == null) {
+                out.write(0);
+            } else {
+                out.write(1);
+                for (String key : indexer.keys) {
+                    if (key == null) {
+                        varint(out, 0);
+                    } else {
+                        byte[] utf8 = key.getBytes(UTF_8);
+                        varint(out, utf8.length + 1);
+                        out.write(utf8);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void varint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /*
+     * Finds the records in the tokens and maps their char offsets to byte
+     * offsets. The decoded chunks are kept until the records in them are
+     * done, as a record's start is known only when its first token is
+     * complete, which can be in a later chunk.
+     */
+    private final class Indexer extends Subscriber<JsonToken> {
+        private final int recordDepth;
+        private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+        private long chars;
+
+        // Last mapped char offset and its byte offset
+        private long cursorChar;
+        private long cursorByte;
+
+        private int depth;
+        private long recordStart;
+        private boolean keyNext;
+        private String key;
+
+        // Start and end byte offsets of the records
+        private long[] offsets = new long[1024];
+        private final List<String> keys = new ArrayList<>();
+        private int count;
+
+        Indexer(int recordDepth) {
+            this.recordDepth = recordDepth;
+        }
+
+        void chunk(CharBuffer buffer, long byteStart) {
+            // Offsets before the last mapped one are not asked for anymore
+            while (!chunks.isEmpty() && end(chunks.peekFirst()) <= cursorChar) {
+                chunks.removeFirst();
+            }
+            chunks.add(new Chunk(buffer, chars, byteStart));
+            chars += buffer.remaining();
+        }
+
+        @Override
+        public void onNext(JsonToken token) {
+            switch (token.event()) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    if (depth++ == recordDepth) {
+                        startRecord(token);
+                    }
+                    // A container isn't a key, and what is in it isn't either
+                    keyNext = false;
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    if (--depth == recordDepth) {
+                        endRecord(token);
+                    }
+                    break;
+                case KEY:
+                    keyNext = depth == recordDepth + 1 && keyField != null && keyField.contentEquals(token.buffer());
+                    break;
+                default:
+                    if (depth == recordDepth) {
+                        startRecord(token);
+                        endRecord(token);
+                    } else if (keyNext) {
+                        if (key == null && token.buffer() != null) {
+                            key = token.buffer().toString();
+                        }
+                        keyNext = false;
+                    }
+                    break;
+            }
+        }
+
+        private void startRecord(JsonToken token) {
+            recordStart = byteOffset(token.start());
+            key = null;
+            keyNext = false;
+        }
+
+        private void endRecord(JsonToken token) {
+            if (2 * count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+            }
+            offsets[2 * count] = recordStart;
+            offsets[2 * count + 1] = byteOffset(token.end());
+            keys.add(key);
+            count++;
+        }
+
+        // Char offsets are mapped in increasing order, from where the last mapping ended
+        private long byteOffset(long charOffset) {
+            while (chunks.size() > 1 && end(chunks.peekFirst()) < charOffset) {
+                chunks.removeFirst();
+            }
+            Chunk chunk = chunks.peekFirst();
+            if (cursorChar < chunk.charStart) {
+                cursorChar = chunk.charStart;
+                cursorByte = chunk.byteStart;
+            }
+            int from = (int) (cursorChar - chunk.charStart);
+            int to = (int) (charOffset - chunk.charStart);
+            cursorByte += Utf8.length(chunk.buffer.subSequence(from, to));
+            cursorChar = charOffset;
+            return cursorByte;
+        }
+
+        private long end(Chunk chunk) {
+            return chunk.charStart + chunk.buffer.length();
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+
+        @Override
+        public void onError(Throwable e) {
+        }
+    }
+
+    private static final class Chunk {
+        final CharBuffer buffer;
+        final long charStart;
+        final long byteStart;
+
+        Chunk(CharBuffer buffer, long charStart, long byteStart) {
+            this.buffer = buffer;
+            this.charStart = charStart;
+            this.byteStart = byteStart;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A fixed set of keys that are matched to their index with a perfect hash.
+ * The hash of a key token is computed by the tokenizer while it scans the
+ * key, so matching a key costs a multiply, a table lookup and a compare of
+ * the chars; no String is created:
+ * <pre>
+ * JsonKeySet keys = JsonKeySet.of("id", "name");
+ * ...
+ * switch (keys.index(token)) {
+ *     case 0: ...
+ *     case 1: ...
+ *     case JsonKeySet.UNKNOWN: ...
+ * }
+ * </pre>
+ * A key set is immutable and can be shared by any number of threads.
+ *
+ * @author Jitendra Kotamraju
+ */
+public final class JsonKeySet {
+    /**
+     * Index of a key that is not in the set.
+     */
+    public static final int UNKNOWN = -1;
+
+    private final String[] keys;
+    private final int[] hashes;
+    // Key index of every slot, or -1, and the next key with the same hash
+    private final int[] slots;
+    private final int[] next;
+    private final int multiplier;
+    private final int shift;
+
+    private JsonKeySet(String[] keys) {
+        this.keys = keys;
+        this.hashes = new int[keys.length];
+        this.next = new int[keys.length];
+        Set<Integer> distinct = new HashSet<>();
+        for (int i = 0; i < keys.length; i++) {
+            hashes[i] = keys[i].hashCode();
+            distinct.add(hashes[i]);
+        }
+
+        // Looks for a multiplier that maps the distinct hashes to distinct slots,
+        // in a table that starts at twice the number of keys and grows if there is none
+        int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(1, 2 * keys.length - 1)));
+        int m = 0x9E3779B9;
+        search:
+        for (; ; bits++) {
+            boolean[] used = new boolean[1 << bits];
+            for (int attempt = 0; attempt < 256; attempt++, m += 0x61C88646) {
+                Arrays.fill(used, false);
+                boolean perfect = true;
+                for (int hash : distinct) {
+                    int slot = (hash * (m | 1)) >>> (32 - bits);
+                    if (used[slot]) {
+                        perfect = false;
+                        break;
+                    }
+                    used[slot] = true;
+                }
+                if (perfect) {
+                    break search;
+                }
+            }
+        }
+        this.multiplier = m | 1;
+        this.shift = 32 - bits;
+        int[] table = new int[1 << bits];
+        Arrays.fill(table, -1);
+        // Keys with the same hash are chained, in reverse so that the first one comes first
+        for (int i = keys.length - 1; i >= 0; i--) {
+            int slot = slot(hashes[i]);
+            next[i] = table[slot];
+            table[slot] = i;
+        }
+        this.slots = table;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a key is given more than once
+     */
+    public static JsonKeySet of(String... keys) {
+        Set<String> seen = new HashSet<>();
+        for (String key : keys) {
+            if (!seen.add(key)) {
+                throw new IllegalArgumentException("Duplicate key = " + key);
+            }
+        }
+        return new JsonKeySet(keys.clone());
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public String key(int index) {
+        return keys[index];
+    }
+
+    /**
+     * @param token a key token, or any token with chars
+     * @return index of the token's chars in this set, or {@link #UNKNOWN}
+     */
+    public int index(JsonToken token) {
+        CharBuffer chars = token.buffer();
+        return chars == null ? UNKNOWN : index(chars, token.hash());
+    }
+
+    /**
+     * @return index of the key in this set, or {@link #UNKNOWN}
+     */
+    public int index(CharSequence key) {
+        return index(key, key instanceof String ? key.hashCode() : hash(key));
+    }
+
+    // The hash is of the chars, as computed by the tokenizer
+    int index(CharSequence chars, int hash) {
+        for (int i = slots[slot(hash)]; i != -1; i = next[i]) {
+            if (hashes[i] == hash && equals(keys[i], chars)) {
+                return i;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private int slot(int hash) {
+        return (hash * multiplier) >>> shift;
+    }
+
+    private static int hash(CharSequence chars) {
+        int hash = 0;
+        for (int i = 0, length = chars.length(); i < length; i++) {
+            hash = 31 * hash + chars.charAt(i);
+        }
+        return hash;
+    }
+
+    private static boolean equals(String key, CharSequence chars) {
+        int length = key.length();
+        if (chars.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key.charAt(i) != chars.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(keys);
+    }
+}
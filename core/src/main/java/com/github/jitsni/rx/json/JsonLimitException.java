@@ -0,0 +1,31 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+/**
+ * Thrown when the input exceeds one of the {@link JsonLimits}.
+ *
+ * @author Jitendra Kotamraju
+ */
+public class JsonLimitException extends JsonParseException {
+    private static final long serialVersionUID = 1L;
+
+    public JsonLimitException(String message, long offset, long line, long column) {
+        super(message, offset, line, column);
+    }
+
+}
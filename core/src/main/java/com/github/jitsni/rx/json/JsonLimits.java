@@ -0,0 +1,134 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+/**
+ * Limits that the tokenizer enforces on its input, so that a single hostile
+ * or broken document can't use up the heap or a worker thread. A violation
+ * fails the stream with {@link JsonLimitException}.
+ *
+ * <p>
+ * Limits are immutable, {@code withXxx} methods return a new instance:
+ * <pre>
+ * JsonLimits limits = JsonLimits.DEFAULT.withMaxDepth(64).withMaxStringLength(4096);
+ * </pre>
+ *
+ * @author Jitendra Kotamraju
+ */
+public final class JsonLimits {
+
+    /**
+     * No limits, the default for {@link JsonTokenTransformer}
+     */
+    public static final JsonLimits NONE = new JsonLimits(
+            Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+
+    /**
+     * Generous limits that still protect a shared worker: depth 1000, strings
+     * of 16M chars, numbers of 1000 chars, top-level values of 256M chars and
+     * 100K keys per object.
+     */
+    public static final JsonLimits DEFAULT = new JsonLimits(
+            1000, 16 << 20, 1000, 256L << 20, 100_000);
+
+    private final int maxDepth;
+    private final int maxStringLength;
+    private final int maxNumberLength;
+    private final long maxDocumentChars;
+    private final int maxKeysPerObject;
+
+    private JsonLimits(int maxDepth, int maxStringLength, int maxNumberLength,
+                       long maxDocumentChars, int maxKeysPerObject) {
+        this.maxDepth = maxDepth;
+        this.maxStringLength = maxStringLength;
+        this.maxNumberLength = maxNumberLength;
+        this.maxDocumentChars = maxDocumentChars;
+        this.maxKeysPerObject = maxKeysPerObject;
+    }
+
+    /**
+     * @return maximum nesting of arrays and objects
+     */
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return maximum length in chars of a string or key, after unescaping
+     */
+    public int maxStringLength() {
+        return maxStringLength;
+    }
+
+    /**
+     * @return maximum length in chars of a number
+     */
+    public int maxNumberLength() {
+        return maxNumberLength;
+    }
+
+    /**
+     * @return maximum chars of a top-level value, including the whitespace before it
+     */
+    public long maxDocumentChars() {
+        return maxDocumentChars;
+    }
+
+    /**
+     * @return maximum number of keys in an object
+     */
+    public int maxKeysPerObject() {
+        return maxKeysPerObject;
+    }
+
+    public JsonLimits withMaxDepth(int maxDepth) {
+        return new JsonLimits(check(maxDepth), maxStringLength, maxNumberLength, maxDocumentChars, maxKeysPerObject);
+    }
+
+    public JsonLimits withMaxStringLength(int maxStringLength) {
+        return new JsonLimits(maxDepth, check(maxStringLength), maxNumberLength, maxDocumentChars, maxKeysPerObject);
+    }
+
+    public JsonLimits withMaxNumberLength(int maxNumberLength) {
+        return new JsonLimits(maxDepth, maxStringLength, check(maxNumberLength), maxDocumentChars, maxKeysPerObject);
+    }
+
+    public JsonLimits withMaxDocumentChars(long maxDocumentChars) {
+        if (maxDocumentChars <= 0) {
+            throw new IllegalArgumentException("Limit must be positive, but got = " + maxDocumentChars);
+        }
+        return new JsonLimits(maxDepth, maxStringLength, maxNumberLength, maxDocumentChars, maxKeysPerObject);
+    }
+
+    public JsonLimits withMaxKeysPerObject(int maxKeysPerObject) {
+        return new JsonLimits(maxDepth, maxStringLength, maxNumberLength, maxDocumentChars, check(maxKeysPerObject));
+    }
+
+    @Override
+    public String toString() {
+        return "JsonLimits[maxDepth=" + maxDepth + ", maxStringLength=" + maxStringLength
+                + ", maxNumberLength=" + maxNumberLength + ", maxDocumentChars=" + maxDocumentChars
+                + ", maxKeysPerObject=" + maxKeysPerObject + "]";
+    }
+
+    private static int check(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive, but got = " + limit);
+        }
+        return limit;
+    }
+}
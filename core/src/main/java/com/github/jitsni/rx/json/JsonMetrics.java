@@ -0,0 +1,220 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import rx.Subscriber;
+
+import java.nio.CharBuffer;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the parsing stages. Pass the same instance to
+ * {@link JsonTokenTransformer#metrics(JsonMetrics)} and
+ * {@link JsonValueTransformer#metrics(JsonMetrics)} to get numbers across
+ * all their subscriptions. The counters are striped, so it is cheap enough to
+ * leave it on under load.
+ *
+ * @author Jitendra Kotamraju
+ */
+public final class JsonMetrics {
+    private final LongAdder chars = new LongAdder();
+    private final LongAdder buffers = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder[] tokens = new LongAdder[JsonToken.Id.values().length];
+    private final LongAdder values = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxTokenLength = new LongAccumulator(Math::max, 0);
+
+    public JsonMetrics() {
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return chars given to the tokenizer
+     */
+    public long chars() {
+        return chars.sum();
+    }
+
+    /**
+     * @return buffers given to the tokenizer
+     */
+    public long buffers() {
+        return buffers.sum();
+    }
+
+    /**
+     * @return time spent tokenizing the buffers. It includes the time taken by
+     *      the downstream stages that run on the same thread
+     */
+    public long parseNanos() {
+        return parseNanos.sum();
+    }
+
+    /**
+     * @return tokens emitted with the given id
+     */
+    public long tokens(JsonToken.Id id) {
+        return tokens[id.ordinal()].sum();
+    }
+
+    /**
+     * @return tokens emitted
+     */
+    public long tokens() {
+        long sum = 0;
+        for (LongAdder adder : tokens) {
+            sum += adder.sum();
+        }
+        return sum;
+    }
+
+    /**
+     * @return top-level values emitted by the value stage
+     */
+    public long values() {
+        return values.sum();
+    }
+
+    /**
+     * @return errors raised by the stages, and errors of the buffer source
+     *      that reached the token stage. An error is counted once, by the
+     *      stage it comes from, even if it goes through the value stage too
+     */
+    public long errors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return deepest nesting of arrays and objects seen so far
+     */
+    public long maxDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * @return length in chars of the longest key, string or number seen so far
+     */
+    public long maxTokenLength() {
+        return maxTokenLength.get();
+    }
+
+    public void reset() {
+        chars.reset();
+        buffers.reset();
+        parseNanos.reset();
+        for (LongAdder adder : tokens) {
+            adder.reset();
+        }
+        values.reset();
+        errors.reset();
+        maxDepth.reset();
+        maxTokenLength.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "JsonMetrics[chars=" + chars() + ", buffers=" + buffers() + ", parseNanos=" + parseNanos()
+                + ", tokens=" + tokens() + ", values=" + values() + ", errors=" + errors()
+                + ", maxDepth=" + maxDepth() + ", maxTokenLength=" + maxTokenLength() + "]";
+    }
+
+    void buffer(int length, long nanos) {
+        chars.add(length);
+        buffers.increment();
+        parseNanos.add(nanos);
+    }
+
+    void error() {
+        errors.increment();
+    }
+
+    /**
+     * Counts the tokens on their way to the given subscriber. Depth and token
+     * length maximums are kept per subscription and published only when they
+     * grow, so that the shared accumulators are rarely touched.
+     */
+    Subscriber<JsonToken> meterTokens(Subscriber<? super JsonToken> subscriber) {
+        return new Subscriber<JsonToken>(subscriber) {
+            private int depth;
+            private int deepest;
+            private int longest;
+
+            @Override
+            public void onCompleted() {
+                subscriber.onCompleted();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                subscriber.onError(throwable);
+            }
+
+            @Override
+            public void onNext(JsonToken token) {
+                tokens[token.event().ordinal()].increment();
+                switch (token.event()) {
+                    case START_OBJECT:
+                    case START_ARRAY:
+                        if (++depth > deepest) {
+                            deepest = depth;
+                            maxDepth.accumulate(depth);
+                        }
+                        break;
+                    case END_OBJECT:
+                    case END_ARRAY:
+                        depth--;
+                        break;
+                    default:
+                        CharBuffer buffer = token.buffer();
+                        if (buffer != null && buffer.remaining() > longest) {
+                            longest = buffer.remaining();
+                            maxTokenLength.accumulate(longest);
+                        }
+                }
+                subscriber.onNext(token);
+            }
+        };
+    }
+
+    /**
+     * Counts the values on their way to the given subscriber.
+     */
+    Subscriber<JsonValue> meterValues(Subscriber<? super JsonValue> subscriber) {
+        return new Subscriber<JsonValue>(subscriber) {
+            @Override
+            public void onCompleted() {
+                subscriber.onCompleted();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                subscriber.onError(throwable);
+            }
+
+            @Override
+            public void onNext(JsonValue value) {
+                values.increment();
+                subscriber.onNext(value);
+            }
+        };
+    }
+}
@@ -20,22 +20,34 @@ import rx.Observable;
 import java.nio.CharBuffer;
 import java.util.Collections;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 /**
+ * A JSON number, as the {@link CharSequence} of its chars. Like
+ * {@link JsonString}, a number can be a view of the tokenizer's chars, see
+ * {@link JsonValueTransformer#views(boolean)}.
  *
  * @author Jitendra Kotamraju
  */
-public final class JsonNumber implements JsonValue {
+public final class JsonNumber extends JsonCharSequence {
 
-    private final CharBuffer buffer;
+    JsonNumber(String str) {
+        super(str);
+    }
 
-    JsonNumber(CharBuffer buffer) {
-        this.buffer = buffer;
+    private JsonNumber(char[] chars, int offset, int length, int hash) {
+        super(chars, offset, length, hash);
     }
 
-    JsonNumber(String str) {
-        this.buffer = CharBuffer.wrap(str);
+    /**
+     * A view of the chars of the token if it is asked for and they stay,
+     * otherwise a copy.
+     */
+    static JsonNumber of(JsonToken token, boolean view) {
+        CharBuffer buffer = token.buffer();
+        if (view && viewable(token)) {
+            return new JsonNumber(buffer.array(), offset(buffer), buffer.remaining(), token.hash());
+        }
+        return new JsonNumber(buffer.toString());
     }
 
     @Override
@@ -55,19 +67,6 @@ public final class JsonNumber implements JsonValue {
 
     @Override
     public boolean equals(Object obj) {
-        if (obj instanceof JsonNumber) {
-            return buffer.equals(((JsonNumber) obj).buffer);
-        }
-        return false;
-    }
-
-    @Override
-    public int hashCode() {
-        return buffer.hashCode();
-    }
-
-    @Override
-    public String toString() {
-        return buffer.toString();
+        return obj instanceof JsonNumber && sameChars((JsonNumber) obj);
     }
 }
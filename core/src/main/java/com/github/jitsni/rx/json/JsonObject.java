@@ -21,6 +21,7 @@ import rx.Observable;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Stream;
 
 /**
@@ -40,6 +41,10 @@ public final class JsonObject implements JsonValue {
         values.put(key, object);
     }
 
+    Set<Map.Entry<String, Object>> entries() {
+        return values.entrySet();
+    }
+
     @Override
     public Observable<JsonValue> observable() {
         return Observable.just(this);   // TODO
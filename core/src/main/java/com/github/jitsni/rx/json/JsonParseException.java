@@ -0,0 +1,79 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+/**
+ * Signals malformed JSON input. It carries the position in the input where
+ * the problem was found, counted from the start of the stream.
+ *
+ * @author Jitendra Kotamraju
+ */
+public class JsonParseException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final long offset;
+    private final long line;
+    private final long column;
+
+    /**
+     * @param message describes the problem
+     * @param offset char offset in the input, or -1 if not known
+     * @param line 1-based line number, or -1 if not known
+     * @param column 1-based column number, or -1 if not known
+     */
+    public JsonParseException(String message, long offset, long line, long column) {
+        super(message);
+        this.offset = offset;
+        this.line = line;
+        this.column = column;
+    }
+
+    /**
+     * @return char offset of the problem in the input, or -1 if not known
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * @return 1-based line number of the problem, or -1 if not known
+     */
+    public long line() {
+        return line;
+    }
+
+    /**
+     * @return 1-based column number of the problem, or -1 if not known
+     */
+    public long column() {
+        return column;
+    }
+
+    @Override
+    public String getMessage() {
+        StringBuilder sb = new StringBuilder(super.getMessage());
+        if (line != -1) {
+            sb.append(" at line ").append(line).append(", column ").append(column);
+            if (offset != -1) {
+                sb.append(" (offset ").append(offset).append(')');
+            }
+        } else if (offset != -1) {
+            sb.append(" at offset ").append(offset);
+        }
+        return sb.toString();
+    }
+}
@@ -17,19 +17,41 @@ package com.github.jitsni.rx.json;
 
 import rx.Observable;
 
+import java.nio.CharBuffer;
 import java.util.Collections;
 import java.util.stream.Stream;
 
 /**
+ * A JSON string. It is also a {@link CharSequence} of its chars.
+ *
+ * <p>
+ * With {@link JsonValueTransformer#views(boolean)}, a string is a view of
+ * the chars that the tokenizer has already unescaped, when they are never
+ * overwritten (that is, without a buffer pool), instead of a copy of them.
+ * Strings are then created only by {@link #toString()}.
  *
  * @author Jitendra Kotamraju
  */
-public final class JsonString implements JsonValue {
-
-    private final String value;
+public final class JsonString extends JsonCharSequence {
 
     JsonString(String value) {
-        this.value = value;
+        super(value);
+    }
+
+    private JsonString(char[] chars, int offset, int length, int hash) {
+        super(chars, offset, length, hash);
+    }
+
+    /**
+     * A view of the chars of the token if it is asked for and they stay,
+     * otherwise a copy.
+     */
+    static JsonString of(JsonToken token, boolean view) {
+        CharBuffer buffer = token.buffer();
+        if (view && viewable(token)) {
+            return new JsonString(buffer.array(), offset(buffer), buffer.remaining(), token.hash());
+        }
+        return new JsonString(buffer.toString());
     }
 
     @Override
@@ -49,20 +71,7 @@ public final class JsonString implements JsonValue {
 
     @Override
     public boolean equals(Object obj) {
-        if (obj instanceof JsonString) {
-            return value.equals(((JsonString) obj).value);
-        }
-        return false;
-    }
-
-    @Override
-    public int hashCode() {
-        return value.hashCode();
-    }
-
-    @Override
-    public String toString() {
-        return value;
+        return obj instanceof JsonString && sameChars((JsonString) obj);
     }
 
 }
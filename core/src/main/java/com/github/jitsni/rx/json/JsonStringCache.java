@@ -0,0 +1,173 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jitsni.rx.json;
+
+import java.nio.CharBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of short string values, so that values that repeat across
+ * records, like {@code "status": "OK"}, are one shared {@link JsonString}
+ * instead of a new one every time:
+ * <pre>
+ * JsonStringCache cache = new JsonStringCache(1024, 32);
+ * ...
+ * tokens.compose(new JsonValueTransformer().stringCache(cache))
+ * </pre>
+ * A string is looked up by the hash that the tokenizer computes while it
+ * scans the string, and then by its chars, so a hit creates nothing.
+ *
+ * <p>
+ * The cache is set-associative: a hash maps to a set of a few entries, and
+ * a miss replaces one of them that wasn't used since the set's CLOCK hand
+ * last went past it. The cached strings are copies, they don't keep the
+ * tokenizer's chars reachable. A cache can be shared by any number of
+ * subscriptions and threads; concurrent misses in the same set may replace
+ * each other's entries, which only costs another miss later.
+ *
+ * @author Jitendra Kotamraju
+ */
+public final class JsonStringCache {
+    private static final int WAYS = 4;
+
+    private final int maxLength;
+    private final int mask;
+    private final AtomicReferenceArray<JsonString> entries;
+    // CLOCK reference bits of the entries, and the hand of every set
+    private final boolean[] referenced;
+    private final byte[] hands;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder skips = new LongAdder();
+
+    /**
+     * @param capacity number of strings kept at most, rounded up to a power
+     *      of two
+     * @param maxLength strings longer than this many chars are not cached
+     */
+    public JsonStringCache(int capacity, int maxLength) {
+        if (capacity <= 0 || maxLength < 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity + " or max length " + maxLength);
+        }
+        int sets = Math.max(1, (capacity + WAYS - 1) / WAYS);
+        sets = Integer.highestOneBit(sets) == sets ? sets : Integer.highestOneBit(sets) << 1;
+        this.maxLength = maxLength;
+        this.mask = sets - 1;
+        this.entries = new AtomicReferenceArray<>(sets * WAYS);
+        this.referenced = new boolean[sets * WAYS];
+        this.hands = new byte[sets];
+    }
+
+    /**
+     * @return the shared string with the chars of the string token, or null
+     *      if the string is too long to be cached
+     */
+    JsonString intern(JsonToken token) {
+        CharBuffer chars = token.buffer();
+        int length = chars.remaining();
+        if (length > maxLength) {
+            skips.increment();
+            return null;
+        }
+        int hash = token.hash();
+        int set = set(hash);
+        int base = set * WAYS;
+        for (int i = base; i < base + WAYS; i++) {
+            JsonString string = entries.get(i);
+            if (string != null && string.hashCode() == hash && same(string, chars, length)) {
+                referenced[i] = true;
+                hits.increment();
+                return string;
+            }
+        }
+        misses.increment();
+        JsonString string = new JsonString(chars.toString());
+        entries.lazySet(victim(set), string);
+        return string;
+    }
+
+    private static boolean same(JsonString string, CharBuffer chars, int length) {
+        if (string.length() != length) {
+            return false;
+        }
+        if (!chars.hasArray()) {
+            return string.contentEquals(chars);
+        }
+        String value = string.toString();
+        char[] array = chars.array();
+        int offset = chars.arrayOffset() + chars.position();
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) != array[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The hand clears the reference bits it goes past, until it finds an entry without one
+    private int victim(int set) {
+        int base = set * WAYS;
+        int hand = hands[set];
+        for (int n = 0; n < WAYS && referenced[base + hand]; n++) {
+            referenced[base + hand] = false;
+            hand = (hand + 1) & (WAYS - 1);
+        }
+        hands[set] = (byte) ((hand + 1) & (WAYS - 1));
+        return base + hand;
+    }
+
+    private int set(int hash) {
+        int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @return number of strings that were found in the cache
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of strings that were not found and were added
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of strings that were too long to be cached
+     */
+    public long skips() {
+        return skips.sum();
+    }
+
+    /**
+     * @return fraction of the cacheable strings that were found in the cache
+     */
+    public double hitRate() {
+        long hits = hits();
+        long total = hits + misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "JsonStringCache[hits=" + hits() + ", misses=" + misses() + ", skips=" + skips() + "]";
+    }
+}
@@ -48,10 +48,37 @@ public final class JsonToken {
 
     private final Id id;
     private final CharBuffer buffer;
+    private final long start;
+    private final long end;
+    // Hash of the chars, computed here on first use unless the tokenizer has
+    // already done it. One field, so a racy first use just computes it again
+    private int hash;
+    // The chars are never overwritten, so the buffer may be kept without copying it
+    private final boolean stable;
 
     JsonToken(Id id, CharBuffer buffer) {
+        this(id, buffer, -1, -1);
+    }
+
+    JsonToken(Id id, CharBuffer buffer, long start, long end) {
+        this(id, buffer, start, end, 0, false);
+    }
+
+    JsonToken(Id id, CharBuffer buffer, long start, long end, int hash) {
+        this(id, buffer, start, end, hash, false);
+    }
+
+    /**
+     * @param stable true if the chars of the buffer are never overwritten,
+     *      unlike the pooled storage of a tokenizer
+     */
+    JsonToken(Id id, CharBuffer buffer, long start, long end, int hash, boolean stable) {
         this.id = id;
         this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+        this.hash = hash;
+        this.stable = stable;
     }
 
     public Id event() {
@@ -62,6 +89,53 @@ public final class JsonToken {
         return buffer;
     }
 
+    /**
+     * Char offset in the input where this token starts, counted from the
+     * start of the stream. Together with {@link #end()} it can be used to
+     * index records of a large input.
+     *
+     * @return start offset, or -1 if not known. The shared constants like
+     *      {@link #START_OBJECT} have no offsets, see
+     *      {@link JsonTokenTransformer#offsets(boolean)}
+     */
+    public long start() {
+        return start;
+    }
+
+    /**
+     * @return char offset just after the end of this token, or -1 if not known
+     */
+    public long end() {
+        return end;
+    }
+
+    /**
+     * Hash of the chars of a key or a string, computed the same way as
+     * {@link String#hashCode()}. The tokenizer computes it while it scans the
+     * chars, so a key can be matched against known names, like with a
+     * {@link JsonKeySet}, without creating a String.
+     *
+     * @return hash of the chars, or 0 if the token has no chars
+     */
+    public int hash() {
+        int h = hash;
+        if (h == 0 && buffer != null) {
+            for (int i = buffer.position(), limit = buffer.limit(); i < limit; i++) {
+                h = 31 * h + buffer.get(i);
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    /**
+     * @return true if the buffer can be kept as is after the token is
+     *      handled, see {@link JsonString}
+     */
+    boolean stable() {
+        return stable;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof JsonToken) {
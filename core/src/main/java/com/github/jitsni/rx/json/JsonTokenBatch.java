@@ -0,0 +1,146 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import rx.Observable;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * The tokens of one input buffer, emitted together so that the per item
+ * cost of Rx is paid once per buffer instead of once per token. The token
+ * ids are kept in an array, and the chars of all the tokens in one shared
+ * char array. A batch has its own copy of the chars, so it stays valid after
+ * the tokenizer has moved on and can be handed to another thread.
+ *
+ * @author Jitendra Kotamraju
+ */
+public final class JsonTokenBatch {
+    private static final JsonToken.Id[] IDS = JsonToken.Id.values();
+
+    private byte[] ids;
+    // Start and length in chars of every token, -1 start for tokens without chars
+    private int[] spans;
+    private char[] chars;
+    private int size;
+    private int length;
+
+    JsonTokenBatch(int tokens, int chars) {
+        this.ids = new byte[tokens];
+        this.spans = new int[2 * tokens];
+        this.chars = new char[chars];
+    }
+
+    /**
+     * @return number of tokens
+     */
+    public int size() {
+        return size;
+    }
+
+    public JsonToken.Id id(int index) {
+        check(index);
+        return IDS[ids[index]];
+    }
+
+    /**
+     * @return view of the token's chars in the shared storage, or null if
+     *      the token has no chars
+     */
+    public CharBuffer buffer(int index) {
+        check(index);
+        int start = spans[2 * index];
+        return start == -1 ? null : CharBuffer.wrap(chars, start, spans[2 * index + 1]);
+    }
+
+    /**
+     * @return the token at the index. Tokens without chars are the shared
+     *      constants like {@link JsonToken#START_OBJECT}
+     */
+    public JsonToken token(int index) {
+        switch (id(index)) {
+            case START_OBJECT:
+                return JsonToken.START_OBJECT;
+            case START_ARRAY:
+                return JsonToken.START_ARRAY;
+            case VALUE_TRUE:
+                return JsonToken.VALUE_TRUE;
+            case VALUE_FALSE:
+                return JsonToken.VALUE_FALSE;
+            case VALUE_NULL:
+                return JsonToken.VALUE_NULL;
+            case END_ARRAY:
+                return JsonToken.END_ARRAY;
+            case END_OBJECT:
+                return JsonToken.END_OBJECT;
+            default:
+                return new JsonToken(id(index), buffer(index));
+        }
+    }
+
+    /**
+     * @return the tokens one by one, for stages that take single tokens
+     */
+    public Observable<JsonToken> tokens() {
+        return Observable.range(0, size).map(this::token);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void add(JsonToken token) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, 2 * size);
+            spans = Arrays.copyOf(spans, 4 * size);
+        }
+        ids[size] = (byte) token.event().ordinal();
+        CharBuffer buffer = token.buffer();
+        if (buffer == null) {
+            spans[2 * size] = -1;
+        } else {
+            int n = buffer.remaining();
+            if (length + n > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(2 * chars.length, length + n));
+            }
+            buffer.duplicate().get(chars, length, n);
+            spans[2 * size] = length;
+            spans[2 * size + 1] = n;
+            length += n;
+        }
+        size++;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(id(i));
+        }
+        return sb.append(']').toString();
+    }
+
+    private void check(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index = " + index + " size = " + size);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.exceptions.Exceptions;
+import rx.functions.Action1;
+
+import java.nio.CharBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Like {@link JsonTokenTransformer}, but emits the tokens of every buffer
+ * as one {@link JsonTokenBatch}. A buffer that completes no token emits no
+ * batch. As there is at most one batch per buffer, the downstream demand is
+ * passed on to the source as it is, and the batch that only the end of the
+ * input completes waits for a demand of its own.
+ *
+ * @author Jitendra Kotamraju
+ */
+public class JsonTokenBatchTransformer implements Observable.Transformer<CharBuffer, JsonTokenBatch> {
+    private BufferPool<CharBuffer> bufferPool;
+    private JsonLimits limits = JsonLimits.NONE;
+    private Action1<? super JsonParseException> skipHandler;
+
+    /**
+     * Uses the pool for the tokenizer's char storage. A batch has its own
+     * copy of the chars, so it is not affected by the reuse of the storage.
+     *
+     * @param pool buffer pool shared by all the subscriptions
+     * @return this transformer
+     */
+    public JsonTokenBatchTransformer bufferPool(BufferPool<CharBuffer> pool) {
+        this.bufferPool = pool;
+        return this;
+    }
+
+    /**
+     * Enforces the given limits on the input. By default there are no limits.
+     *
+     * @return this transformer
+     */
+    public JsonTokenBatchTransformer limits(JsonLimits limits) {
+        this.limits = limits;
+        return this;
+    }
+
+    /**
+     * Skips malformed input instead of failing the stream, see
+     * {@link JsonTokenTransformer#skipErrors(Action1)}.
+     *
+     * @param handler called with every skipped error
+     * @return this transformer
+     */
+    public JsonTokenBatchTransformer skipErrors(Action1<? super JsonParseException> handler) {
+        this.skipHandler = handler;
+        return this;
+    }
+
+    @Override
+    public Observable<JsonTokenBatch> call(Observable<CharBuffer> source) {
+        return Observable.create(new Observable.OnSubscribe<JsonTokenBatch>() {
+            @Override
+            public void call(Subscriber<? super JsonTokenBatch> subscriber) {
+                Batcher batcher = new Batcher();
+                JsonTokenizer tokenizer = new JsonTokenizer(batcher, bufferPool, limits, skipHandler, false);
+                BufferSubscriber buffers = new BufferSubscriber(subscriber, tokenizer, batcher);
+                subscriber.add(buffers);
+                subscriber.setProducer(buffers::more);
+                source.subscribe(buffers);
+            }
+        });
+    }
+
+    /*
+     * Tokenizes the buffers into batches. There is at most one batch per
+     * buffer, so the demand for batches is passed on to the source as it is.
+     * Only the last batch, of the tokens that the end of the input completes
+     * (like a number at the end), has no buffer of its own, so it waits for
+     * a demand that is left over.
+     */
+    private static final class BufferSubscriber extends Subscriber<CharBuffer> {
+        private final Subscriber<? super JsonTokenBatch> subscriber;
+        private final JsonTokenizer tokenizer;
+        private final Batcher batcher;
+        // Batches that are asked for and not emitted yet
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicReference<JsonTokenBatch> last = new AtomicReference<>();
+        private boolean done;
+
+        BufferSubscriber(Subscriber<? super JsonTokenBatch> subscriber, JsonTokenizer tokenizer, Batcher batcher) {
+            this.subscriber = subscriber;
+            this.tokenizer = tokenizer;
+            this.batcher = batcher;
+        }
+
+        @Override
+        public void onStart() {
+            // Nothing until the downstream asks, see more()
+            request(0);
+        }
+
+        void more(long n) {
+            if (n <= 0) {
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = requested.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!requested.compareAndSet(current, next));
+            request(n);
+            emitLast();
+        }
+
+        @Override
+        public void onCompleted() {
+            if (done) {
+                return;
+            }
+            try {
+                tokenizer.finish();
+            } catch (JsonParseException e) {
+                onError(e);
+                return;
+            }
+            done = true;
+            tokenizer.close();
+            if (batcher.batch.isEmpty()) {
+                subscriber.onCompleted();
+            } else {
+                last.set(batcher.take());
+                emitLast();
+            }
+        }
+
+        // Set before the demand is checked, and the demand is added before last is checked, so one of them emits it
+        private void emitLast() {
+            if (requested.get() > 0) {
+                JsonTokenBatch batch = last.getAndSet(null);
+                if (batch != null) {
+                    subscriber.onNext(batch);
+                    subscriber.onCompleted();
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (done) {
+                return;
+            }
+            done = true;
+            tokenizer.close();
+            subscriber.onError(throwable);
+        }
+
+        @Override
+        public void onNext(CharBuffer buffer) {
+            if (done) {
+                return;
+            }
+            try {
+                tokenizer.parse(buffer);
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                unsubscribe();
+                onError(e);
+                return;
+            }
+            if (batcher.batch.isEmpty()) {
+                request(1);
+            } else {
+                if (requested.get() != Long.MAX_VALUE) {
+                    requested.decrementAndGet();
+                }
+                subscriber.onNext(batcher.take());
+            }
+        }
+    }
+
+    // Collects the tokens of a buffer, the next batch starts with the size of the last one
+    private static final class Batcher extends Subscriber<JsonToken> {
+        private JsonTokenBatch batch = new JsonTokenBatch(64, 256);
+
+        JsonTokenBatch take() {
+            JsonTokenBatch taken = batch;
+            batch = new JsonTokenBatch(Math.max(taken.size(), 64), 256);
+            return taken;
+        }
+
+        @Override
+        public void onNext(JsonToken token) {
+            batch.add(token);
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+
+        @Override
+        public void onError(Throwable e) {
+        }
+    }
+}
@@ -18,15 +18,112 @@ package com.github.jitsni.rx.json;
 import rx.Observable;
 import rx.Subscriber;
 import rx.Subscription;
+import rx.exceptions.Exceptions;
 import rx.functions.Action0;
+import rx.functions.Action1;
 
 import java.nio.CharBuffer;
 
 /**
+ * Tokenizes char buffers. A char buffer is read completely in
+ * {@code onNext} and not kept after that, so the source may reuse it.
+ *
+ * <p>
+ * Without {@link #limits} and {@link #skipErrors}, a buffer that holds whole
+ * top-level values, like a whole document, is tokenized in two passes: a
+ * structural index of it is built 64 chars at a time, and the tokens are
+ * emitted by walking the index. The tokens and errors are the same as with
+ * any other chunking of the input.
  *
  * @author Jitendra Kotamraju
  */
 public class JsonTokenTransformer implements Observable.Transformer<CharBuffer, JsonToken> {
+    private BufferPool<CharBuffer> bufferPool;
+    private JsonMetrics metrics;
+    private JsonLimits limits = JsonLimits.NONE;
+    private Action1<? super JsonParseException> skipHandler;
+    private boolean offsets;
+    private boolean pooled;
+
+    /**
+     * Uses the pool for the char storage of tokens instead of allocating it
+     * for every subscription. The storage is reused once a top-level value is
+     * done, so {@link JsonToken#buffer()} is valid only until then and must be
+     * copied to keep it longer. {@link JsonValueTransformer} already does that.
+     *
+     * @param pool buffer pool shared by all the subscriptions
+     * @return this transformer
+     */
+    public JsonTokenTransformer bufferPool(BufferPool<CharBuffer> pool) {
+        this.bufferPool = pool;
+        return this;
+    }
+
+    /**
+     * Records chars, buffers, tokens, nesting depth, token lengths, parse
+     * time and errors of all the subscriptions in the given metrics.
+     *
+     * @param metrics counters shared by all the subscriptions
+     * @return this transformer
+     */
+    public JsonTokenTransformer metrics(JsonMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Enforces the given limits on the input. By default there are no limits.
+     *
+     * @param limits for example {@link JsonLimits#DEFAULT}
+     * @return this transformer
+     */
+    public JsonTokenTransformer limits(JsonLimits limits) {
+        this.limits = limits;
+        return this;
+    }
+
+    /**
+     * Skips malformed input instead of failing the stream, which suits
+     * newline delimited records. The top-level value with the error is
+     * dropped along with the rest of its line, and tokenizing resumes at the
+     * next line. Downstream gets only the tokens of complete values, as they
+     * are held back until their top-level value ends.
+     *
+     * @param handler called with every skipped error
+     * @return this transformer
+     */
+    public JsonTokenTransformer skipErrors(Action1<? super JsonParseException> handler) {
+        this.skipHandler = handler;
+        return this;
+    }
+
+    /**
+     * Emits every token with its start and end offsets. Tokens with chars
+     * always carry them, but structural and literal tokens are shared
+     * constants unless this is enabled, which saves an allocation per token.
+     *
+     * @param offsets true to have offsets on all the tokens
+     * @return this transformer
+     */
+    public JsonTokenTransformer offsets(boolean offsets) {
+        this.offsets = offsets;
+        return this;
+    }
+
+    /**
+     * Reuses tokenizers across subscriptions: a subscription takes an idle
+     * tokenizer from a shared pool and gives it back when it terminates. This
+     * saves the setup of the tokenizer's internal buffers and stacks, which
+     * matters for many small documents. With a {@link #bufferPool}, the char
+     * storage of tokens is recycled as well.
+     *
+     * @param pooled true to reuse tokenizers
+     * @return this transformer
+     */
+    public JsonTokenTransformer pooled(boolean pooled) {
+        this.pooled = pooled;
+        return this;
+    }
 
     @Override
     public Observable<JsonToken> call(Observable<CharBuffer> source) {
@@ -34,26 +131,81 @@ public class JsonTokenTransformer implements Observable.Transformer<CharBuffer,
         Observable<JsonToken> tokenObservable = Observable.create(new Observable.OnSubscribe<JsonToken>() {
             @Override
             public void call(Subscriber<? super JsonToken> subscriber) {
-                final JsonTokenizer tokenizer = new JsonTokenizer(subscriber);
+                final JsonMetrics metrics = JsonTokenTransformer.this.metrics;
+                final Action1<? super JsonParseException> skipHandler = metrics == null || JsonTokenTransformer.this.skipHandler == null
+                        ? JsonTokenTransformer.this.skipHandler
+                        : e -> {
+                            metrics.error();
+                            JsonTokenTransformer.this.skipHandler.call(e);
+                        };
+                final Subscriber<? super JsonToken> tokenSubscriber = metrics == null ? subscriber : metrics.meterTokens(subscriber);
+                final boolean pooled = JsonTokenTransformer.this.pooled;
+                final JsonTokenizer tokenizer = pooled
+                        ? JsonTokenizer.acquire(tokenSubscriber, bufferPool, limits, skipHandler, offsets)
+                        : new JsonTokenizer(tokenSubscriber, bufferPool, limits, skipHandler, offsets);
+
+                Subscriber<CharBuffer> bufferSubscriber = new Subscriber<CharBuffer>() {
+                    private boolean done;
 
-                source.subscribe(
-                        new Subscriber<CharBuffer>() {
-                            @Override
-                            public void onCompleted() {
-                                subscriber.onCompleted();
-                            }
+                    @Override
+                    public void onCompleted() {
+                        if (done) {
+                            return;
+                        }
+                        try {
+                            tokenizer.finish();
+                        } catch (JsonParseException e) {
+                            onError(e);
+                            return;
+                        }
+                        done = true;
+                        close();
+                        subscriber.onCompleted();
+                    }
 
-                            @Override
-                            public void onError(Throwable throwable) {
+                    @Override
+                    public void onError(Throwable throwable) {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        if (metrics != null) {
+                            metrics.error();
+                        }
+                        close();
+                        subscriber.onError(throwable);
+                    }
 
-                            }
+                    private void close() {
+                        if (pooled) {
+                            JsonTokenizer.release(tokenizer);
+                        } else {
+                            tokenizer.close();
+                        }
+                    }
 
-                            @Override
-                            public void onNext(CharBuffer buffer) {
-                                tokenizer.parse(buffer);
-                            }
+                    @Override
+                    public void onNext(CharBuffer buffer) {
+                        if (done) {
+                            return;
+                        }
+                        int length = buffer.remaining();
+                        long start = metrics == null ? 0 : System.nanoTime();
+                        try {
+                            tokenizer.parse(buffer);
+                        } catch (Throwable e) {
+                            Exceptions.throwIfFatal(e);
+                            unsubscribe();
+                            onError(e);
+                            return;
+                        }
+                        if (metrics != null) {
+                            metrics.buffer(length, System.nanoTime() - start);
                         }
-                );
+                    }
+                };
+                subscriber.add(bufferSubscriber);
+                source.subscribe(bufferSubscriber);
             }
         });
 
@@ -1,11 +1,12 @@
 package com.github.jitsni.rx.json;
 
 import rx.Subscriber;
+import rx.functions.Action1;
 
 import java.nio.CharBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.NoSuchElementException;
 
 /**
  *
@@ -13,43 +14,120 @@ import java.util.NoSuchElementException;
  * @author Jitendra Kotamraju
  */
 final class JsonTokenizer {
-    private final Subscriber<? super JsonToken> subscriber;
+    // Idle tokenizers, see acquire()
+    private static final InstancePool<JsonTokenizer> POOL = new InstancePool<>(256);
+
+    private Subscriber<? super JsonToken> subscriber;
     private final InBuffer in;
     private State state;
-    private Context context;
-    private final Stack stack;
-    private OutputBuffer out;
+    // Open arrays and objects, the next state after a value depends on the innermost one
+    private final ContainerStack containers;
+    private final OutputBuffer out;
     private State afterString;
+    // Value of the unicode escape being read, and a high surrogate that waits for its low one
+    private int unicode;
+    private char highSurrogate;
+    private JsonLimits limits;
+    // Number of keys of the open objects, by depth
+    private int[] keys = new int[16];
+    private long documentStart;
+    private Action1<? super JsonParseException> skipHandler;
+    private List<JsonToken> pending;
+    private boolean offsets;
+    // Offset where the current token starts, and the current line and its start offset
+    private long tokenStart;
+    private long line = 1;
+    private long lineStart;
+    // Structural index of the current buffer, see parseIndexed()
+    private StructuralIndex index;
 
     JsonTokenizer(Subscriber<? super JsonToken> subscriber) {
-        this.subscriber = subscriber;
+        this(subscriber, null, JsonLimits.NONE, null, false);
+    }
+
+    /**
+     * @param pool for the char storage of tokens, or null to allocate it.
+     *      A pooled storage is reused once a top-level value is done, so the
+     *      buffer of a token is valid only until then
+     * @param limits checked while tokenizing
+     * @param skipHandler if not null, a top-level value with an error is
+     *      reported to it and skipped up to the end of the line, and tokenizing
+     *      continues with the next line. Tokens are then held back until their
+     *      top-level value is complete, so that downstream never sees a
+     *      partial value
+     * @param offsets if true, all tokens carry their start and end offsets.
+     *      Otherwise only the tokens that have chars do, and the shared
+     *      structural and literal tokens are emitted without offsets
+     */
+    JsonTokenizer(Subscriber<? super JsonToken> subscriber, BufferPool<CharBuffer> pool, JsonLimits limits,
+                  Action1<? super JsonParseException> skipHandler, boolean offsets) {
         this.in = new InBuffer();
         this.out = new OutputBuffer();
-        this.stack = new Stack();
-        this.context = new ValueContext();
-        transition(State.VALUE);
+        this.containers = new ContainerStack();
+        reset(subscriber, pool, limits, skipHandler, offsets);
     }
 
-    private static final class Stack {
-        private Context head;
-
-        private void push(Context context) {
-            context.next = head;
-            head = context;
-        }
+    /**
+     * Returns an idle tokenizer that is reset with the given arguments, or a
+     * new one. Give it back with {@link #release} when its stream is done.
+     *
+     * @see #JsonTokenizer(Subscriber, BufferPool, JsonLimits, Action1, boolean)
+     */
+    static JsonTokenizer acquire(Subscriber<? super JsonToken> subscriber, BufferPool<CharBuffer> pool,
+                                 JsonLimits limits, Action1<? super JsonParseException> skipHandler,
+                                 boolean offsets) {
+        JsonTokenizer tokenizer = POOL.poll();
+        if (tokenizer == null) {
+            return new JsonTokenizer(subscriber, pool, limits, skipHandler, offsets);
+        }
+        tokenizer.reset(subscriber, pool, limits, skipHandler, offsets);
+        return tokenizer;
+    }
 
-        private Context pop() {
-            if (head == null) {
-                throw new NoSuchElementException();
-            }
-            Context temp = head;
-            head = head.next;
-            return temp;
-        }
+    /**
+     * Closes the tokenizer and keeps it for a later {@link #acquire}. The
+     * tokenizer must not be used after this.
+     */
+    static void release(JsonTokenizer tokenizer) {
+        tokenizer.close();
+        tokenizer.subscriber = null;
+        tokenizer.skipHandler = null;
+        if (tokenizer.index != null) {
+            tokenizer.index.trim();
+        }
+        POOL.offer(tokenizer);
+    }
 
-        private boolean isEmpty() {
-            return head == null;
-        }
+    /**
+     * Starts a new stream, as if this were a new tokenizer with the given
+     * arguments. The internal buffers and stacks are kept; the char storage
+     * of tokens is kept only with a pool, since without one the tokens of the
+     * earlier stream may still refer to it.
+     */
+    void reset(Subscriber<? super JsonToken> subscriber, BufferPool<CharBuffer> pool, JsonLimits limits,
+               Action1<? super JsonParseException> skipHandler, boolean offsets) {
+        this.subscriber = subscriber;
+        this.offsets = offsets;
+        this.limits = limits;
+        this.skipHandler = skipHandler;
+        if (skipHandler == null) {
+            pending = null;
+        } else if (pending == null) {
+            pending = new ArrayList<>();
+        } else {
+            pending.clear();
+        }
+        in.reset();
+        out.reset(pool);
+        containers.clear();
+        afterString = null;
+        unicode = 0;
+        highSurrogate = 0;
+        documentStart = 0;
+        tokenStart = 0;
+        line = 1;
+        lineStart = 0;
+        transition(State.VALUE);
     }
 
     private enum State {
@@ -81,28 +159,18 @@ final class JsonTokenizer {
         STRING_UNICODE_1,
         STRING_UNICODE_2,
         STRING_UNICODE_3,
+        STRING_SURROGATE,
+        STRING_SURROGATE_U,
         KEY,
         KEY_STRING,
         ARRAY_VALUE_OR_END,
         ARRAY_COMMA_OR_END,
         OBJECT_KEY_OR_END,
         OBJECT_COMMA_OR_END,
+        SKIP_LINE,
         END
     }
 
-    private abstract class Context {
-        Context next;
-    }
-
-    private final class ValueContext extends Context {
-    }
-
-    private final class ArrayContext extends Context {
-    }
-
-    private final class ObjectContext extends Context {
-    }
-
     // Table to look up hex ch -> value (for e.g HEX['F'] = 15, HEX['5'] = 5)
     private final static int[] HEX = new int[128];
     static {
@@ -119,13 +187,388 @@ final class JsonTokenizer {
     }
     private final static int HEX_LENGTH = HEX.length;
 
-
+    // Rest of the literals after their first char, matched at once when the buffer has all of it
+    private static final char[] RUE = "rue".toCharArray();
+    private static final char[] ALSE = "alse".toCharArray();
+    private static final char[] ULL = "ull".toCharArray();
+
+    // The rest of a buffer is indexed only if it has at least these many chars
+    private static final int INDEXED_MIN_CHARS = 16;
+
+    /**
+     * Tokenizes all the chars of the buffer. The buffer is not used after
+     * this returns, so the caller may reuse it.
+     *
+     * <p>
+     * Without limits and skipping, the part of the buffer from the first
+     * point between top-level values, which is all of it for whole documents,
+     * is tokenized from a {@link StructuralIndex}, and only what that can't
+     * finish is left to the char states.
+     */
     void parse(CharBuffer buf) {
         in.add(buf);
-        while(in.hasRemaining()) {
-            _parse();
+        boolean indexable = pending == null && limits == JsonLimits.NONE;
+        try {
+            while (true) {
+                try {
+                    while (in.hasRemaining()) {
+                        if (indexable && state == State.VALUE && containers.depth() == 0) {
+                            indexable = false;
+                            if (buf.remaining() >= INDEXED_MIN_CHARS) {
+                                parseIndexed(buf);
+                                continue;
+                            }
+                        }
+                        _parse();
+                    }
+                    _parse();
+                    // An unfinished document is checked once per buffer, a finished one in endValue()
+                    checkDocument();
+                    return;
+                } catch (JsonParseException e) {
+                    skip(e);
+                }
+            }
+        } finally {
+            in.done();
+        }
+    }
+
+    /**
+     * Called at the end of the input. A number at the end is only complete
+     * now, anything else that is unfinished is an error.
+     */
+    void finish() {
+        try {
+            if (state == State.NUMBER && containers.depth() == 0) {
+                endNumber();
+            }
+            if ((state != State.VALUE && state != State.SKIP_LINE) || containers.depth() != 0) {
+                throw error("Unexpected end of input");
+            }
+        } catch (JsonParseException e) {
+            skip(e);
+        }
+    }
+
+    /*
+     * Second stage of the indexed tokenizing, for the rest of a buffer from a
+     * point between top-level values: walks the token starts that StructuralIndex
+     * found, and emits the tokens with the same helpers as the char states.
+     * The expected state here is the one the char states would be in, and the
+     * containers are theirs. At the first token that isn't valid, or that the
+     * buffer cuts, the char states take over from the start of that token in
+     * that state. So an error or the wait for the next buffer is exactly as if
+     * they had read the whole buffer, and no char is tokenized twice except
+     * the cut token.
+     */
+    private void parseIndexed(CharBuffer buf) {
+        if (index == null) {
+            index = new StructuralIndex();
+        }
+        index.build(buf);
+        char[] chars = index.chars();
+        int offset = index.offset();
+        State expect = State.VALUE;
+        int p;
+        walk:
+        while ((p = index.next()) != -1) {
+            char ch = chars[offset + p];
+            buf.position(p + 1);
+            startToken();
+            switch (ch) {
+                case '{':
+                    if (expect != State.VALUE && expect != State.ARRAY_VALUE_OR_END) {
+                        break walk;
+                    }
+                    push(ContainerStack.OBJECT);
+                    keys[containers.depth()] = 0;
+                    emit(token(JsonToken.START_OBJECT));
+                    expect = State.OBJECT_KEY_OR_END;
+                    continue;
+                case '[':
+                    if (expect != State.VALUE && expect != State.ARRAY_VALUE_OR_END) {
+                        break walk;
+                    }
+                    push(ContainerStack.ARRAY);
+                    emit(token(JsonToken.START_ARRAY));
+                    expect = State.ARRAY_VALUE_OR_END;
+                    continue;
+                case '}':
+                    if (expect != State.OBJECT_KEY_OR_END && expect != State.OBJECT_COMMA_OR_END) {
+                        break walk;
+                    }
+                    emit(token(JsonToken.END_OBJECT));
+                    containers.pop();
+                    break;
+                case ']':
+                    if (expect != State.ARRAY_VALUE_OR_END && expect != State.ARRAY_COMMA_OR_END) {
+                        break walk;
+                    }
+                    emit(token(JsonToken.END_ARRAY));
+                    containers.pop();
+                    break;
+                case ':':
+                    if (expect != State.COLON) {
+                        break walk;
+                    }
+                    expect = State.VALUE;
+                    continue;
+                case ',':
+                    if (expect == State.ARRAY_COMMA_OR_END) {
+                        expect = State.VALUE;
+                    } else if (expect == State.OBJECT_COMMA_OR_END) {
+                        expect = State.KEY;
+                    } else {
+                        break walk;
+                    }
+                    continue;
+                case '"': {
+                    boolean key = expect == State.OBJECT_KEY_OR_END || expect == State.KEY;
+                    if (!key && expect != State.VALUE && expect != State.ARRAY_VALUE_OR_END) {
+                        break walk;
+                    }
+                    int close = index.quoteAfter(p);
+                    out.start(limits.maxStringLength(), "String");
+                    if (close == -1 || !indexedString(chars, offset + p + 1, offset + close)) {
+                        out.discard();
+                        break walk;
+                    }
+                    buf.position(close + 1);
+                    if (key) {
+                        keys[containers.depth()]++;
+                        emit(token(JsonToken.Id.KEY, out.get()));
+                        expect = State.COLON;
+                        continue;
+                    }
+                    emit(token(JsonToken.Id.VALUE_STRING, out.get()));
+                    break;
+                }
+                default:
+                    if ((expect != State.VALUE && expect != State.ARRAY_VALUE_OR_END) || !indexedScalar(buf, chars, offset, p, ch)) {
+                        break walk;
+                    }
+                    break;
+            }
+            // A value is complete
+            if (containers.depth() == 0) {
+                out.recycle();
+                documentStart = in.offset();
+                expect = State.VALUE;
+            } else {
+                expect = containers.peek() == ContainerStack.ARRAY
+                        ? State.ARRAY_COMMA_OR_END : State.OBJECT_COMMA_OR_END;
+            }
         }
-        _parse();
+
+        // At the token that stopped the walk, or after the last token
+        if (p != -1) {
+            buf.position(p);
+        }
+        transition(expect);
+        int resume = buf.position();
+        // Newlines are counted only up to where the char states take over
+        int newlines = index.newlines(resume);
+        if (newlines > 0) {
+            line += newlines;
+            lineStart = in.offset() - (resume - index.lastNewline(resume) - 1);
+        }
+        index.clear();
+    }
+
+    // Puts the chars of a string in out, unescaped. False if it has an invalid escape or control char
+    private boolean indexedString(char[] chars, int from, int to) {
+        int i = from;
+        // The quotes in between are escaped, so the plain runs end at their backslashes
+        while ((i = out.putPlain(chars, i, to)) < to) {
+            char ch = chars[i];
+            if (ch < 0x20) {
+                return false;
+            }
+            // A backslash is never the last char, as the closing quote isn't escaped
+            ch = chars[++i];
+            switch (ch) {
+                case 'b':
+                    ch = '\b';
+                    break;
+                case 't':
+                    ch = '\t';
+                    break;
+                case 'n':
+                    ch = '\n';
+                    break;
+                case 'f':
+                    ch = '\f';
+                    break;
+                case 'r':
+                    ch = '\r';
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    break;
+                case 'u': {
+                    int value = hex(chars, i + 1, to);
+                    i += 4;
+                    if (value == -1 || Character.isLowSurrogate((char) value)) {
+                        return false;
+                    }
+                    if (Character.isHighSurrogate((char) value)) {
+                        int low = i + 2 < to && chars[i + 1] == '\\' && chars[i + 2] == 'u'
+                                ? hex(chars, i + 3, to) : -1;
+                        if (low == -1 || !Character.isLowSurrogate((char) low)) {
+                            return false;
+                        }
+                        out.put((char) value);
+                        value = low;
+                        i += 6;
+                    }
+                    ch = (char) value;
+                    break;
+                }
+                default:
+                    return false;
+            }
+            out.put(ch);
+            i++;
+        }
+        return true;
+    }
+
+    // Value of the four hex digits at i, or -1 if they aren't all there
+    private static int hex(char[] chars, int i, int to) {
+        if (i + 4 > to) {
+            return -1;
+        }
+        int value = 0;
+        for (int j = i; j < i + 4; j++) {
+            char ch = chars[j];
+            int hex = ch < HEX_LENGTH ? HEX[ch] : -1;
+            if (hex == -1) {
+                return -1;
+            }
+            value = value << 4 | hex;
+        }
+        return value;
+    }
+
+    /*
+     * Emits the literal or number that starts at p. False if it isn't valid,
+     * isn't followed by a delimiter, or may go on in the next buffer.
+     */
+    private boolean indexedScalar(CharBuffer buf, char[] chars, int offset, int p, char ch) {
+        JsonToken literal;
+        switch (ch) {
+            case 't':
+                literal = in.skip(RUE) ? JsonToken.VALUE_TRUE : null;
+                break;
+            case 'f':
+                literal = in.skip(ALSE) ? JsonToken.VALUE_FALSE : null;
+                break;
+            case 'n':
+                literal = in.skip(ULL) ? JsonToken.VALUE_NULL : null;
+                break;
+            case '0':
+            case '1':
+            case '2':
+            case '3':
+            case '4':
+            case '5':
+            case '6':
+            case '7':
+            case '8':
+            case '9':
+            case '-': {
+                int end = p + 1;
+                while (end < buf.limit() && numberChar(chars[offset + end])) {
+                    end++;
+                }
+                if (end == buf.limit() || !StructuralIndex.delimiter(chars[offset + end])) {
+                    return false;
+                }
+                out.start(limits.maxNumberLength(), "Number");
+                out.put(chars, offset + p, offset + end);
+                buf.position(end);
+                emit(token(JsonToken.Id.VALUE_NUMBER, out.get()));
+                return true;
+            }
+            default:
+                return false;
+        }
+        int end = buf.position();
+        if (literal == null || (end < buf.limit() && !StructuralIndex.delimiter(chars[offset + end]))) {
+            return false;
+        }
+        emit(token(literal));
+        return true;
+    }
+
+    // Chars after the first one of a number, as in readNumber()
+    private static boolean numberChar(char ch) {
+        return (ch >= '0' && ch <= '9') || ch == '-' || ch == 'e' || ch == 'E' || ch == '.';
+    }
+
+    // Drops the current top-level value and skips to the end of the line, if that is allowed
+    private void skip(JsonParseException e) {
+        if (skipHandler == null) {
+            throw e;
+        }
+        skipHandler.call(e);
+        pending.clear();
+        out.recycle();
+        containers.clear();
+        afterString = null;
+        highSurrogate = 0;
+        documentStart = in.offset();
+        // The line may have ended with the bad char itself
+        transition(in.lastChar() == '\n' ? State.VALUE : State.SKIP_LINE);
+    }
+
+    private void checkDocument() {
+        if (in.offset() - documentStart > limits.maxDocumentChars()) {
+            throw limitError("Document is longer than " + limits.maxDocumentChars() + " chars");
+        }
+    }
+
+    private void emit(JsonToken token) {
+        if (pending == null) {
+            subscriber.onNext(token);
+        } else {
+            pending.add(token);
+        }
+    }
+
+    // Error at the char that was read last
+    private JsonParseException error(String message) {
+        long offset = Math.max(in.offset() - 1, 0);
+        return new JsonParseException(message, offset, line, offset - lineStart + 1);
+    }
+
+    private JsonLimitException limitError(String message) {
+        long offset = in.offset();
+        return new JsonLimitException(message, offset, line, offset - lineStart + 1);
+    }
+
+    // Newlines outside of strings are only in whitespace, so lines are counted there
+    private void newLine() {
+        line++;
+        lineStart = in.offset();
+    }
+
+    // Called with the first char of a token
+    private void startToken() {
+        tokenStart = in.offset() - 1;
+    }
+
+    // A token of the chars that were just put in out, it ends at the current offset.
+    // Its chars are never overwritten unless out is pooled
+    private JsonToken token(JsonToken.Id id, CharBuffer buffer) {
+        return new JsonToken(id, buffer, tokenStart, in.offset(), out.hash, out.pool == null);
+    }
+
+    // A structural or literal token, with offsets only if they are asked for
+    private JsonToken token(JsonToken shared) {
+        return offsets ? new JsonToken(shared.event(), null, tokenStart, in.offset()) : shared;
     }
 
     private void _parse() {
@@ -201,10 +644,23 @@ final class JsonTokenizer {
                 readEscapedString();
                 break;
             case STRING_UNICODE:
+                readUnicode(State.STRING_UNICODE_1);
+                break;
             case STRING_UNICODE_1:
+                readUnicode(State.STRING_UNICODE_2);
+                break;
             case STRING_UNICODE_2:
+                readUnicode(State.STRING_UNICODE_3);
+                break;
             case STRING_UNICODE_3:
-                throw new RuntimeException("TODO");
+                readUnicode(null);
+                break;
+            case STRING_SURROGATE:
+                readSurrogate('\\', State.STRING_SURROGATE_U);
+                break;
+            case STRING_SURROGATE_U:
+                readSurrogate('u', State.STRING_UNICODE);
+                break;
             case KEY:
                 readKey();
                 break;
@@ -220,6 +676,9 @@ final class JsonTokenizer {
             case OBJECT_COMMA_OR_END:
                 readObjectCommaOrEnd();
                 break;
+            case SKIP_LINE:
+                readSkipLine();
+                break;
             case END:
                 break;
             default:
@@ -227,10 +686,21 @@ final class JsonTokenizer {
         }
     }
 
+    private void readSkipLine() {
+        while (in.hasRemaining()) {
+            if (in.nextChar() == '\n') {
+                newLine();
+                documentStart = in.offset();
+                transition(State.VALUE);
+                return;
+            }
+        }
+    }
+
     private void readStartObject() {
-        subscriber.onNext(JsonToken.START_OBJECT);
-        stack.push(context);
-        context = new ObjectContext();
+        push(ContainerStack.OBJECT);
+        keys[containers.depth()] = 0;
+        emit(token(JsonToken.START_OBJECT));
         transition(State.OBJECT_KEY_OR_END);
     }
 
@@ -245,18 +715,22 @@ final class JsonTokenizer {
             case ' ':
             case '\t':
             case '\r':
+                break;
             case '\n':
+                newLine();
                 break;
             case '}':
+                startToken();
                 transition(State.END_OBJECT);
                 break;
             case '"':
-                out.start();
+                startToken();
+                out.start(limits.maxStringLength(), "String");
                 afterString = State.KEY_STRING;
                 transition(State.STRING);
                 break;
             default:
-                throw new RuntimeException("Expecting '}' or '\"' but got = " + ch);
+                throw error("Expecting '}' or '\"' but got = " + ch);
         }
     }
 
@@ -271,30 +745,27 @@ final class JsonTokenizer {
             case ' ':
             case '\t':
             case '\r':
+                break;
             case '\n':
+                newLine();
                 break;
             case '}':
+                startToken();
                 transition(State.END_OBJECT);
                 break;
             case ',':
                 transition(State.KEY);
                 break;
             default:
-                throw new RuntimeException("Expecting '}' or ',' but got = " + ch);
+                throw error("Expecting '}' or ',' but got = " + ch);
         }
     }
 
     private void readEndObject() {
-        subscriber.onNext(JsonToken.END_OBJECT);
+        emit(token(JsonToken.END_OBJECT));
 
-        context = stack.pop();
-        if (context instanceof ValueContext) {
-            transition(State.VALUE);
-        } else if (context instanceof ArrayContext) {
-            transition(State.ARRAY_COMMA_OR_END);
-        } else {
-            transition(State.OBJECT_COMMA_OR_END);
-        }
+        containers.pop();
+        endValue();
     }
 
     private void readColon() {
@@ -308,28 +779,28 @@ final class JsonTokenizer {
             case ' ':
             case '\t':
             case '\r':
+                break;
             case '\n':
+                newLine();
                 break;
             case ':':
                 transition(State.VALUE);
                 break;
             default:
-                throw new RuntimeException("Expecting ':'  but got = " + ch);
+                throw error("Expecting ':'  but got = " + ch);
         }
     }
 
     private void readStartArray() {
-        subscriber.onNext(JsonToken.START_ARRAY);
+        push(ContainerStack.ARRAY);
+        emit(token(JsonToken.START_ARRAY));
 
-        stack.push(context);
-        context = new ArrayContext();
         transition(State.ARRAY_VALUE_OR_END);
     }
 
     private void readArrayValueOrEnd() {
         char ch;
         if (in.hasRemaining()) {
-            in.mark();
             ch = in.nextChar();
         } else {
             return;
@@ -338,13 +809,16 @@ final class JsonTokenizer {
             case ' ':
             case '\t':
             case '\r':
+                break;
             case '\n':
+                newLine();
                 break;
             case ']':
+                startToken();
                 transition(State.END_ARRAY);
                 break;
             default:
-                in.reset();
+                in.unread();
                 transition(State.VALUE);
                 break;
         }
@@ -361,30 +835,27 @@ final class JsonTokenizer {
             case ' ':
             case '\t':
             case '\r':
+                break;
             case '\n':
+                newLine();
                 break;
             case ']':
+                startToken();
                 transition(State.END_ARRAY);
                 break;
             case ',':
                 transition(State.VALUE);
                 break;
             default:
-                throw new RuntimeException("Expecting ']' or ',' but got = " + ch);
+                throw error("Expecting ']' or ',' but got = " + ch);
         }
     }
 
     private void readEndArray() {
-        subscriber.onNext(JsonToken.END_ARRAY);
+        emit(token(JsonToken.END_ARRAY));
 
-        context = stack.pop();
-        if (context instanceof ValueContext) {
-            transition(State.VALUE);
-        } else if (context instanceof ArrayContext) {
-            transition(State.ARRAY_COMMA_OR_END);
-        } else {
-            transition(State.OBJECT_COMMA_OR_END);
-        }
+        containers.pop();
+        endValue();
     }
 
     private void readFalseF() {
@@ -397,7 +868,7 @@ final class JsonTokenizer {
         if (ch == 'a') {
             transition(State.FALSE_A);
         } else {
-            throw new RuntimeException("Expecting f'a'lse but got = " + ch);
+            throw error("Expecting f'a'lse but got = " + ch);
         }
     }
 
@@ -411,7 +882,7 @@ final class JsonTokenizer {
         if (ch == 'l') {
             transition(State.FALSE_L);
         } else {
-            throw new RuntimeException("Expecting fa'l'se but got = " + ch);
+            throw error("Expecting fa'l'se but got = " + ch);
         }
     }
 
@@ -425,7 +896,7 @@ final class JsonTokenizer {
         if (ch == 's') {
             transition(State.FALSE_S);
         } else {
-            throw new RuntimeException("Expecting fal's'e but got = " + ch);
+            throw error("Expecting fal's'e but got = " + ch);
         }
     }
 
@@ -439,20 +910,14 @@ final class JsonTokenizer {
         if (ch == 'e') {
             transition(State.FALSE_E);
         } else {
-            throw new RuntimeException("Expecting fals'e' but got = " + ch);
+            throw error("Expecting fals'e' but got = " + ch);
         }
     }
 
     private void readFalseE() {
-        subscriber.onNext(JsonToken.VALUE_FALSE);
+        emit(token(JsonToken.VALUE_FALSE));
 
-        if (context instanceof ValueContext) {
-            transition(State.VALUE); // or space ??
-        } else if (context instanceof ArrayContext) {
-            transition(State.ARRAY_COMMA_OR_END);
-        } else {
-            transition(State.OBJECT_COMMA_OR_END);
-        }
+        endValue();
     }
 
     private void readTrueT() {
@@ -465,7 +930,7 @@ final class JsonTokenizer {
         if (ch == 'r') {
             transition(State.TRUE_R);
         } else {
-            throw new RuntimeException("Expecting t'r'ue but got = " + ch);
+            throw error("Expecting t'r'ue but got = " + ch);
         }
     }
 
@@ -479,7 +944,7 @@ final class JsonTokenizer {
         if (ch == 'u') {
             transition(State.TRUE_U);
         } else {
-            throw new RuntimeException("Expecting tr'u'e but got = " + ch);
+            throw error("Expecting tr'u'e but got = " + ch);
         }
     }
 
@@ -493,20 +958,14 @@ final class JsonTokenizer {
         if (ch == 'e') {
             transition(State.TRUE_E);
         } else {
-            throw new RuntimeException("Expecting tru'e' but got = " + ch);
+            throw error("Expecting tru'e' but got = " + ch);
         }
     }
 
     private void readTrueE() {
-        subscriber.onNext(JsonToken.VALUE_TRUE);
+        emit(token(JsonToken.VALUE_TRUE));
 
-        if (context instanceof ValueContext) {
-            transition(State.VALUE); // or space ??
-        } else if (context instanceof ArrayContext) {
-            transition(State.ARRAY_COMMA_OR_END);
-        } else {
-            transition(State.OBJECT_COMMA_OR_END);
-        }
+        endValue();
     }
 
     private void readNullN() {
@@ -519,7 +978,7 @@ final class JsonTokenizer {
         if (ch == 'u') {
             transition(State.NULL_U);
         } else {
-            throw new RuntimeException("Expecting n'u'll but got = " + ch);
+            throw error("Expecting n'u'll but got = " + ch);
         }
     }
 
@@ -533,7 +992,7 @@ final class JsonTokenizer {
         if (ch == 'l') {
             transition(State.NULL_L);
         } else {
-            throw new RuntimeException("Expecting nu'l'l but got = " + ch);
+            throw error("Expecting nu'l'l but got = " + ch);
         }
     }
 
@@ -547,23 +1006,18 @@ final class JsonTokenizer {
         if (ch == 'l') {
             transition(State.NULL_LL);
         } else {
-            throw new RuntimeException("Expecting nul'l' but got = " + ch);
+            throw error("Expecting nul'l' but got = " + ch);
         }
     }
 
     private void readNullLL() {
-        subscriber.onNext(JsonToken.VALUE_NULL);
+        emit(token(JsonToken.VALUE_NULL));
 
-        if (context instanceof ValueContext) {
-            transition(State.VALUE); // or space ??
-        } else if (context instanceof ArrayContext) {
-            transition(State.ARRAY_COMMA_OR_END);
-        } else {
-            transition(State.OBJECT_COMMA_OR_END);
-        }
+        endValue();
     }
 
     private void readString() {
+        in.putPlain(out);
         char ch;
         if (in.hasRemaining()) {
             ch = in.nextChar();
@@ -574,23 +1028,20 @@ final class JsonTokenizer {
             if (State.KEY_STRING == afterString) {
                 afterString = null;
                 transition(State.COLON);
-                subscriber.onNext(new JsonToken(JsonToken.Id.KEY, out.get()));
+                if (++keys[containers.depth()] > limits.maxKeysPerObject()) {
+                    throw limitError("Object has more than " + limits.maxKeysPerObject() + " keys");
+                }
+                emit(token(JsonToken.Id.KEY, out.get()));
                 return;
             } else {
-                subscriber.onNext(new JsonToken(JsonToken.Id.VALUE_STRING, out.get()));
+                emit(token(JsonToken.Id.VALUE_STRING, out.get()));
             }
 
-            if (context instanceof ValueContext) {
-                transition(State.VALUE); // or space ??
-            } else if (context instanceof ArrayContext) {
-                transition(State.ARRAY_COMMA_OR_END);
-            } else {
-                transition(State.OBJECT_COMMA_OR_END);
-            }
+            endValue();
         } else if (ch == '\\') {
             transition(State.STRING_ESCAPED);
         } else if (ch < 0x20) {
-            throw new RuntimeException("Invalid control char = " + ch);
+            throw error("Invalid control char = " + ch);
         } else {
             out.put(ch);
         }
@@ -632,12 +1083,69 @@ final class JsonTokenizer {
                 transition(State.STRING);
                 break;
             case 'u':
+                unicode = 0;
                 transition(State.STRING_UNICODE);
+                break;
             default:
-                throw new RuntimeException("Invalid char = " + ch);
+                throw error("Invalid char = " + ch);
         }
     }
 
+    // Reads a hex digit of a unicode escape, next is null for the last digit
+    private void readUnicode(State next) {
+        char ch;
+        if (in.hasRemaining()) {
+            ch = in.nextChar();
+        } else {
+            return;
+        }
+        int hex = ch < HEX_LENGTH ? HEX[ch] : -1;
+        if (hex == -1) {
+            throw error("Invalid hex char in \\u escape = " + ch);
+        }
+        unicode = unicode << 4 | hex;
+        if (next != null) {
+            transition(next);
+            return;
+        }
+
+        char value = (char) unicode;
+        unicode = 0;
+        if (highSurrogate != 0) {
+            if (!Character.isLowSurrogate(value)) {
+                throw error("Expecting a low surrogate after \\u" + Integer.toHexString(highSurrogate)
+                        + " but got = \\u" + Integer.toHexString(value));
+            }
+            out.put(highSurrogate);
+            out.put(value);
+            highSurrogate = 0;
+            transition(State.STRING);
+        } else if (Character.isHighSurrogate(value)) {
+            highSurrogate = value;
+            transition(State.STRING_SURROGATE);
+        } else if (Character.isLowSurrogate(value)) {
+            throw error("Unpaired low surrogate = \\u" + Integer.toHexString(value));
+        } else {
+            out.put(value);
+            transition(State.STRING);
+        }
+    }
+
+    // A high surrogate escape must be followed by the unicode escape of a low surrogate
+    private void readSurrogate(char expected, State next) {
+        char ch;
+        if (in.hasRemaining()) {
+            ch = in.nextChar();
+        } else {
+            return;
+        }
+        if (ch != expected) {
+            throw error("Expecting a low surrogate after \\u" + Integer.toHexString(highSurrogate)
+                    + " but got = " + ch);
+        }
+        transition(next);
+    }
+
 //    private void readEscapedKeyString() {
 //        char ch;
 //        if (in.hasRemaining()) {
@@ -691,22 +1199,24 @@ final class JsonTokenizer {
             case ' ':
             case '\t':
             case '\r':
+                break;
             case '\n':
+                newLine();
                 break;
             case '"':
-                out.start();
+                startToken();
+                out.start(limits.maxStringLength(), "String");
                 afterString = State.KEY_STRING;
                 transition(State.STRING);
                 break;
             default:
-                throw new RuntimeException("Expecting '\"' but got = " + ch);
+                throw error("Expecting '\"' but got = " + ch);
         }
     }
 
     private void readNumber()  {
         char ch;
         if (in.hasRemaining()) {
-            in.mark();
             ch = in.nextChar();
         } else {
             return;
@@ -729,17 +1239,15 @@ final class JsonTokenizer {
                 out.put(ch);
                 return;
             default:
-                in.reset();
+                in.unread();
         }
-        subscriber.onNext(new JsonToken(JsonToken.Id.VALUE_NUMBER, out.get())); // TODO
+        endNumber();
+    }
 
-        if (context instanceof ValueContext) {
-            transition(State.VALUE); // or space ??
-        } else if (context instanceof ArrayContext) {
-            transition(State.ARRAY_COMMA_OR_END);
-        } else {
-            transition(State.OBJECT_COMMA_OR_END);
-        }
+    private void endNumber() {
+        emit(token(JsonToken.Id.VALUE_NUMBER, out.get()));
+
+        endValue();
     }
 
 
@@ -756,26 +1264,49 @@ final class JsonTokenizer {
             case ' ':
             case '\t':
             case '\r':
+                break;
             case '\n':
+                newLine();
                 break;
             case '"':
-                out.start();
+                startToken();
+                out.start(limits.maxStringLength(), "String");
                 transition(State.STRING);
                 break;
             case '{':
+                startToken();
                 transition(State.START_OBJECT);
                 break;
             case '[':
+                startToken();
                 transition(State.START_ARRAY);
                 break;
             case 't':
-                transition(State.TRUE_T);
+                startToken();
+                if (in.skip(RUE)) {
+                    emit(token(JsonToken.VALUE_TRUE));
+                    endValue();
+                } else {
+                    transition(State.TRUE_T);
+                }
                 break;
             case 'f':
-                transition(State.FALSE_F);
+                startToken();
+                if (in.skip(ALSE)) {
+                    emit(token(JsonToken.VALUE_FALSE));
+                    endValue();
+                } else {
+                    transition(State.FALSE_F);
+                }
                 break;
             case 'n':
-                transition(State.NULL_N);
+                startToken();
+                if (in.skip(ULL)) {
+                    emit(token(JsonToken.VALUE_NULL));
+                    endValue();
+                } else {
+                    transition(State.NULL_N);
+                }
                 break;
             case '0':
             case '1':
@@ -788,81 +1319,117 @@ final class JsonTokenizer {
             case '8':
             case '9':
             case '-':
-                out.start();
+                startToken();
+                out.start(limits.maxNumberLength(), "Number");
                 out.put(ch);
                 transition(State.NUMBER);
                 break;
             default:
-                throw new RuntimeException("Expected one of value start chars, but got = " + ch);
+                throw error("Expected one of value start chars, but got = " + ch);
         }
     }
 
-    private void transition(State state) {
-        //System.out.println(this.state + "->" + state);
-        this.state = state;
-    }
-
-
-/*
-    private static class CumulativeBuffer {
-        private final List<CharBuffer> buffers;
-
-        CumulativeBuffer() {
-            buffers = new ArrayList<>();
+    private void push(byte container) {
+        if (containers.depth() >= limits.maxDepth()) {
+            throw limitError("Nesting is deeper than " + limits.maxDepth());
         }
-
-        private boolean hasRemaining() {
-            while(true) {
-                if (buffers.isEmpty()) {
-                    return false;
-                } else if (buffers.get(0).hasRemaining()) {
-                    return true;
-                } else {
-                    buffers.remove(0);
-                }
-            }
-        }
-
-        private void add(CharBuffer buffer) {
-            buffers.add(buffer);
-        }
-
-        private void mark() {
-            buffers.get(0).mark();
+        containers.push(container);
+        int depth = containers.depth();
+        if (depth == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * depth);
         }
+    }
 
-        private void reset() {
-            buffers.get(0).reset();
+    // Picks the next state after a complete value using the enclosing container
+    private void endValue() {
+        switch (containers.peek()) {
+            case ContainerStack.NONE:
+                checkDocument();
+                if (pending != null) {
+                    for (JsonToken token : pending) {
+                        subscriber.onNext(token);
+                    }
+                    pending.clear();
+                }
+                out.recycle();
+                documentStart = in.offset();
+                transition(State.VALUE); // or space ??
+                break;
+            case ContainerStack.ARRAY:
+                transition(State.ARRAY_COMMA_OR_END);
+                break;
+            default:
+                transition(State.OBJECT_COMMA_OR_END);
+                break;
         }
+    }
 
-        private char nextChar() {
-            assert hasRemaining();
-            return buffers.get(0).get();
-        }
+    /**
+     * Gives back the pooled storage. The tokenizer must not be used after this.
+     */
+    void close() {
+        out.release();
+    }
 
+    private void transition(State state) {
+        //System.out.println(this.state + "->" + state);
+        this.state = state;
     }
-*/
 
+    /*
+     * The input is consumed one buffer at a time, and a buffer is always read
+     * to its end before the next one is added. The tokenizer keeps all its
+     * progress in its state, and never needs more than the char it just read:
+     * it gives back that char with unread(), and lastChar() still has it after
+     * the next buffer is added. So the earlier buffers are never kept or
+     * copied, and any chunking of the input (down to a char per buffer) works
+     * the same. A buffer is let go as soon as it is read, so that it can be
+     * reused for the next chunk.
+     */
     private static class InBuffer {
         private CharBuffer buffer;
+        private int start;
+        private long consumed;
+        // Last char of the earlier buffers
+        private char previous;
 
         InBuffer() {
         }
 
+        private void reset() {
+            buffer = null;
+            start = 0;
+            consumed = 0;
+            previous = 0;
+        }
+
         private boolean hasRemaining() {
             return buffer.hasRemaining();
         }
 
         private void add(CharBuffer buffer) {
             this.buffer = buffer;
+            this.start = buffer.position();
         }
 
-        private void mark() {
-            buffer.mark();
+        private void done() {
+            previous = lastChar();
+            consumed = offset();
+            buffer = null;
         }
 
-        private void reset() {
-            buffer.reset();
+        private char lastChar() {
+            return buffer == null || buffer.position() == start ? previous : buffer.get(buffer.position() - 1);
+        }
+
+        // Number of chars consumed from all the buffers
+        private long offset() {
+            return buffer == null ? consumed : consumed + buffer.position() - start;
+        }
+
+        // Gives back the char that was read last, it is always in the current buffer
+        private void unread() {
+            buffer.position(buffer.position() - 1);
         }
 
         private char nextChar() {
@@ -870,12 +1437,60 @@ final class JsonTokenizer {
             return buffer.get();
         }
 
+        /**
+         * Gives the chars of a string up to its next quote, backslash or
+         * control char to out at once, if this buffer has an array.
+         * Otherwise they are read one by one.
+         */
+        private void putPlain(OutputBuffer out) {
+            if (buffer.hasArray()) {
+                int offset = buffer.arrayOffset();
+                int end = out.putPlain(buffer.array(), offset + buffer.position(), offset + buffer.limit());
+                buffer.position(end - offset);
+            }
+        }
+
+        /**
+         * Skips the given chars if they come next in this buffer. Otherwise,
+         * or if the buffer ends before them, nothing is read.
+         */
+        private boolean skip(char[] chars) {
+            int position = buffer.position();
+            int length = chars.length;
+            if (buffer.limit() - position < length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(position + i) != chars[i]) {
+                    return false;
+                }
+            }
+            buffer.position(position + length);
+            return true;
+        }
+
     }
 
-    private static class OutputBuffer {
+    private class OutputBuffer {
+        private static final int MIN_CAPACITY = 1024;
+        private static final int MAX_CHUNK = 64 * 1024;
+
+        private BufferPool<CharBuffer> pool;
         private List<CharBuffer> buffers;
         private CharBuffer current;
         private int startPosition;
+        private int maxLength;
+        private String kind;
+        // String.hashCode() of the chars of the current token, kept up as they are put
+        private int hash;
+
+        // Gives back the storage of the earlier stream, if any, and starts using the pool
+        private void reset(BufferPool<CharBuffer> pool) {
+            release();
+            this.pool = pool;
+            startPosition = 0;
+            hash = 0;
+        }
 
         private void put(CharBuffer buf, boolean last) {
             throw new RuntimeException("TODO");
@@ -883,31 +1498,146 @@ final class JsonTokenizer {
 
         private void put(char ch) {
             if (!current.hasRemaining()) {
-                buffers.add(current);
-                current = CharBuffer.allocate(1024);
+                grow(1);
             }
             current.put(ch);
+            hash = 31 * hash + ch;
         }
 
-        private CharBuffer get() {
-            if (buffers == null || buffers.isEmpty()) {
-                int position = current.position();
-                int limit = current.limit();
-                current.position(startPosition);
-                current.limit(position);
-                CharBuffer out = current.slice();
-                current.limit(limit);
-                current.position(position);
-                return out;
+        private void put(char[] chars, int from, int to) {
+            int h = hash;
+            for (int i = from; i < to; i++) {
+                h = 31 * h + chars[i];
             }
-            throw new RuntimeException("TODO");
+            hash = h;
+            if (current.remaining() < to - from) {
+                grow(to - from);
+            }
+            current.put(chars, from, to - from);
+        }
+
+        /**
+         * Puts the chars up to the first quote, backslash or control char, in
+         * one go. No more than one char past the max length is put, so that
+         * a long string is still caught before all of it is copied.
+         *
+         * @return index of the first char that isn't put
+         */
+        private int putPlain(char[] chars, int from, int to) {
+            int room = maxLength - (current.position() - startPosition);
+            if (to - from > room) {
+                to = from + Math.max(room + 1, 0);
+            }
+            int h = hash;
+            int i = from;
+            for (; i < to; i++) {
+                char ch = chars[i];
+                if (ch == '"' || ch == '\\' || ch < 0x20) {
+                    break;
+                }
+                h = 31 * h + ch;
+            }
+            hash = h;
+            if (current.remaining() < i - from) {
+                grow(i - from);
+            }
+            current.put(chars, from, i - from);
+            return i;
         }
 
-        private void start() {
+        private CharBuffer get() {
+            int position = current.position();
+            if (position - startPosition > maxLength) {
+                throw tooLong();
+            }
+            int limit = current.limit();
+            current.position(startPosition);
+            current.limit(position);
+            CharBuffer out = current.slice();
+            current.limit(limit);
+            current.position(position);
+            return out;
+        }
+
+        /**
+         * Starts a token that can be up to the given length.
+         *
+         * @param kind of the token for error messages
+         */
+        private void start(int maxLength, String kind) {
             if (current == null) {
-                current = CharBuffer.allocate(1024);
+                current = allocate(MIN_CAPACITY);
             }
             startPosition = current.position();
+            hash = 0;
+            this.maxLength = maxLength;
+            this.kind = kind;
+        }
+
+        // Drops the chars of the token that is being built
+        private void discard() {
+            current.position(startPosition);
+        }
+
+        private JsonLimitException tooLong() {
+            return limitError(kind + " is longer than " + maxLength + " chars");
+        }
+
+        /*
+         * Moves the token that is being built to a new buffer that has room
+         * for it to double, and for more chars. The buffers double up to
+         * MAX_CHUNK, so that the tokens of a document are in a few big
+         * arrays, which values can be views of.
+         */
+        private void grow(int more) {
+            int length = current.position() - startPosition;
+            if (length > maxLength) {
+                throw tooLong();
+            }
+            int chunk = Math.max(MIN_CAPACITY, Math.min(2 * current.capacity(), MAX_CHUNK));
+            CharBuffer next = allocate(Math.max(chunk, Math.max(2 * length, length + more)));
+            current.flip();
+            current.position(startPosition);
+            next.put(current);
+            if (pool != null) {
+                // Earlier tokens may still refer to it, so it is released only in recycle()
+                if (buffers == null) {
+                    buffers = new ArrayList<>();
+                }
+                buffers.add(current);
+            }
+            current = next;
+            startPosition = 0;
+        }
+
+        // Called when a top-level value is done, none of its tokens are needed anymore
+        private void recycle() {
+            if (pool != null && current != null) {
+                releaseBuffers();
+                current.clear();
+                startPosition = 0;
+            }
+        }
+
+        private void release() {
+            if (pool != null && current != null) {
+                releaseBuffers();
+                pool.release(current);
+            }
+            current = null;
+        }
+
+        private void releaseBuffers() {
+            if (buffers != null && !buffers.isEmpty()) {
+                for (CharBuffer buffer : buffers) {
+                    pool.release(buffer);
+                }
+                buffers.clear();
+            }
+        }
+
+        private CharBuffer allocate(int capacity) {
+            return pool != null ? pool.acquire(capacity) : CharBuffer.allocate(capacity);
         }
 
     }
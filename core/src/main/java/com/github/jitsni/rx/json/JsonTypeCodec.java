@@ -0,0 +1,291 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.CharBuffer;
+
+/**
+ * Decodes objects of a class from tokens and encodes them to text, without
+ * reflection. Subclasses are generated at compile time for the classes
+ * annotated with {@link JsonCodec}; they dispatch keys with a switch on the
+ * key's hash and set the fields directly. Decode with a
+ * {@link JsonDecodeTransformer}, encode with {@link #encode} or
+ * {@link #toJson}.
+ *
+ * <p>
+ * The protected methods are called by the decoder with the field index
+ * returned by {@link #field}, and the static ones are helpers for the
+ * generated code.
+ *
+ * @author Jitendra Kotamraju
+ */
+public abstract class JsonTypeCodec<T> {
+    /** A field set from a single token */
+    protected static final int SCALAR = 0;
+    /** A field set from an object */
+    protected static final int OBJECT = 1;
+    /** A field set from an array */
+    protected static final int LIST = 2;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * @return a new object, to be filled in by the decoder
+     */
+    protected abstract T newInstance();
+
+    /**
+     * @param key chars of a key token
+     * @param hash of the key, see {@link JsonToken#hash()}
+     * @return index of the field for the key, or -1 if there is no such field
+     */
+    protected abstract int field(CharBuffer key, int hash);
+
+    /**
+     * @return {@link #SCALAR}, {@link #OBJECT} or {@link #LIST}
+     */
+    protected abstract int shape(int field);
+
+    /**
+     * Sets a field from a scalar token, null included.
+     *
+     * @throws JsonParseException if the token doesn't fit the field
+     */
+    protected abstract void set(T object, int field, JsonToken token);
+
+    /**
+     * Sets an object or list field to a decoded value.
+     */
+    protected abstract void set(T object, int field, Object value);
+
+    /**
+     * @return the element of a list field for a scalar token
+     * @throws JsonParseException if the token doesn't fit the elements
+     */
+    protected abstract Object element(int field, JsonToken token);
+
+    /**
+     * @return codec of an object field or of the elements of a list field,
+     *      or null if they are not objects
+     */
+    protected abstract JsonTypeCodec<?> codec(int field);
+
+    /**
+     * Appends the object as JSON text.
+     */
+    public abstract void encode(T object, StringBuilder out);
+
+    public String toJson(T object) {
+        StringBuilder out = new StringBuilder();
+        encode(object, out);
+        return out.toString();
+    }
+
+    protected static boolean equals(CharBuffer key, String name) {
+        int length = name.length();
+        if (key.remaining() != length) {
+            return false;
+        }
+        int position = key.position();
+        for (int i = 0; i < length; i++) {
+            if (key.get(position + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static boolean isNull(JsonToken token) {
+        return token.event() == JsonToken.Id.VALUE_NULL;
+    }
+
+    protected static boolean booleanValue(JsonToken token, String name) {
+        switch (token.event()) {
+            case VALUE_TRUE:
+                return true;
+            case VALUE_FALSE:
+                return false;
+            default:
+                throw mismatch(token, name);
+        }
+    }
+
+    protected static int intValue(JsonToken token, String name) {
+        return (int) integer(token, name, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    protected static long longValue(JsonToken token, String name) {
+        return integer(token, name, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    protected static short shortValue(JsonToken token, String name) {
+        return (short) integer(token, name, Short.MIN_VALUE, Short.MAX_VALUE);
+    }
+
+    protected static byte byteValue(JsonToken token, String name) {
+        return (byte) integer(token, name, Byte.MIN_VALUE, Byte.MAX_VALUE);
+    }
+
+    protected static double doubleValue(JsonToken token, String name) {
+        return Double.parseDouble(number(token, name).toString());
+    }
+
+    protected static float floatValue(JsonToken token, String name) {
+        return Float.parseFloat(number(token, name).toString());
+    }
+
+    protected static BigDecimal bigDecimalValue(JsonToken token, String name) {
+        return new BigDecimal(number(token, name).toString());
+    }
+
+    protected static BigInteger bigIntegerValue(JsonToken token, String name) {
+        BigDecimal decimal = new BigDecimal(number(token, name).toString());
+        // An exponent makes a short token a huge integer, like 1e20000000, that takes ages to expand.
+        // So the integer may have only as many digits as a number token of the default limits
+        if (decimal.precision() - decimal.scale() > JsonLimits.DEFAULT.maxNumberLength()) {
+            throw outOfRange(token, name);
+        }
+        // And a fraction is checked without expanding 1e-20000000
+        decimal = decimal.stripTrailingZeros();
+        if (decimal.scale() > 0) {
+            throw outOfRange(token, name);
+        }
+        return decimal.toBigIntegerExact();
+    }
+
+    protected static String stringValue(JsonToken token, String name) {
+        if (token.event() != JsonToken.Id.VALUE_STRING) {
+            throw mismatch(token, name);
+        }
+        return token.buffer().toString();
+    }
+
+    protected static <E extends Enum<E>> E enumValue(Class<E> type, JsonToken token, String name) {
+        if (token.event() != JsonToken.Id.VALUE_STRING) {
+            throw mismatch(token, name);
+        }
+        CharBuffer chars = token.buffer();
+        for (E constant : type.getEnumConstants()) {
+            if (constant.name().contentEquals(chars)) {
+                return constant;
+            }
+        }
+        throw new JsonParseException("No constant of " + type.getName() + " for " + name + " = " + chars,
+                token.start(), -1, -1);
+    }
+
+    protected static JsonParseException mismatch(JsonToken token, String name) {
+        return new JsonParseException("Unexpected " + token + " for " + name, token.start(), -1, -1);
+    }
+
+    // Appends the chars as a JSON string, escaping them as needed
+    protected static void string(CharSequence chars, StringBuilder out) {
+        out.append('"');
+        for (int i = 0, length = chars.length(); i < length; i++) {
+            char ch = chars.charAt(i);
+            switch (ch) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        out.append("\\u00").append(HEX[ch >> 4]).append(HEX[ch & 0xF]);
+                    } else {
+                        out.append(ch);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    protected static void number(double value, StringBuilder out) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Not a JSON number = " + value);
+        }
+        out.append(value);
+    }
+
+    private static CharBuffer number(JsonToken token, String name) {
+        if (token.event() != JsonToken.Id.VALUE_NUMBER) {
+            throw mismatch(token, name);
+        }
+        return token.buffer();
+    }
+
+    // Parses the digits of the token without creating a String
+    static long integer(JsonToken token, String name, long min, long max) {
+        CharBuffer chars = number(token, name);
+        int length = chars.remaining();
+        int position = chars.position();
+        boolean negative = length > 0 && chars.get(position) == '-';
+        int i = negative ? 1 : 0;
+        if (length == i || length - i > 18) {
+            return slowInteger(token, name, min, max);
+        }
+        long value = 0;
+        for (; i < length; i++) {
+            char ch = chars.get(position + i);
+            if (ch < '0' || ch > '9') {
+                return slowInteger(token, name, min, max);
+            }
+            value = 10 * value + (ch - '0');
+        }
+        value = negative ? -value : value;
+        if (value < min || value > max) {
+            throw outOfRange(token, name);
+        }
+        return value;
+    }
+
+    // Big values, and values like 1.0 or 1e3 that are still integers
+    private static long slowInteger(JsonToken token, String name, long min, long max) {
+        long value;
+        try {
+            value = new BigDecimal(token.buffer().toString()).longValueExact();
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw outOfRange(token, name);
+        }
+        if (value < min || value > max) {
+            throw outOfRange(token, name);
+        }
+        return value;
+    }
+
+    private static JsonParseException outOfRange(JsonToken token, String name) {
+        return new JsonParseException("Out of range for " + name + " = " + token.buffer(), token.start(), -1, -1);
+    }
+}
@@ -17,6 +17,7 @@
 package com.github.jitsni.rx.json;
 import rx.Observable;
 import rx.Subscriber;
+import rx.exceptions.Exceptions;
 
 import java.nio.CharBuffer;
 
@@ -25,32 +26,135 @@ import java.nio.CharBuffer;
  * @author Jitendra Kotamraju
  */
 public class JsonValueTransformer implements Observable.Transformer<JsonToken, JsonValue> {
+    private JsonMetrics metrics;
+    private boolean pooled;
+    private JsonStringCache stringCache;
+    private boolean views;
+
+    /**
+     * Records the values and errors of all the subscriptions in the given
+     * metrics.
+     *
+     * @param metrics counters shared by all the subscriptions
+     * @return this transformer
+     */
+    public JsonValueTransformer metrics(JsonMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Reuses the internal stacks across subscriptions, taking them from a
+     * shared pool and giving them back when a subscription terminates.
+     *
+     * @param pooled true to reuse them
+     * @return this transformer
+     * @see JsonTokenTransformer#pooled(boolean)
+     */
+    public JsonValueTransformer pooled(boolean pooled) {
+        this.pooled = pooled;
+        return this;
+    }
+
+    /**
+     * Shares the string values that repeat, up to the cache's max length,
+     * instead of creating a new one for every occurrence. The cache can be
+     * shared with other transformers.
+     *
+     * @param stringCache cache of the strings, or null for no caching
+     * @return this transformer
+     */
+    public JsonValueTransformer stringCache(JsonStringCache stringCache) {
+        this.stringCache = stringCache;
+        return this;
+    }
+
+    /**
+     * Makes the strings and numbers views of the tokenizer's chars instead
+     * of copies, when the tokenizer has no buffer pool. That saves a copy
+     * and a String per value, but a view keeps the tokenizer's whole storage
+     * chunk reachable, up to 64K chars that may hold other documents too.
+     * So it suits values that are used and dropped, not kept.
+     *
+     * @param views true for views
+     * @return this transformer
+     */
+    public JsonValueTransformer views(boolean views) {
+        this.views = views;
+        return this;
+    }
 
     @Override
     public Observable<JsonValue> call(Observable<JsonToken> source) {
         Observable<JsonValue> valueObservable = Observable.create(new Observable.OnSubscribe<JsonValue>() {
             @Override
             public void call(Subscriber<? super JsonValue> subscriber) {
-                final JsonValuer tokenizer = new JsonValuer(subscriber);
+                final JsonMetrics metrics = JsonValueTransformer.this.metrics;
+                final Subscriber<? super JsonValue> valueSubscriber = metrics == null ? subscriber : metrics.meterValues(subscriber);
+                final boolean pooled = JsonValueTransformer.this.pooled;
+                final JsonValuer tokenizer = pooled ? JsonValuer.acquire(valueSubscriber) : new JsonValuer(valueSubscriber);
+                tokenizer.stringCache(JsonValueTransformer.this.stringCache);
+                tokenizer.views(JsonValueTransformer.this.views);
 
-                source.subscribe(
-                        new Subscriber<JsonToken>() {
-                            @Override
-                            public void onCompleted() {
-                                subscriber.onCompleted();
-                            }
+                Subscriber<JsonToken> tokenSubscriber = new Subscriber<JsonToken>() {
+                    private boolean done;
 
-                            @Override
-                            public void onError(Throwable throwable) {
+                    @Override
+                    public void onCompleted() {
+                        if (done) {
+                            return;
+                        }
+                        try {
+                            tokenizer.finish();
+                        } catch (JsonParseException e) {
+                            fail(e);
+                            return;
+                        }
+                        done = true;
+                        close();
+                        subscriber.onCompleted();
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        close();
+                        subscriber.onError(throwable);
+                    }
 
-                            }
+                    // Errors from upstream are counted by the stage they come from, so only these ones are counted here
+                    private void fail(Throwable throwable) {
+                        if (metrics != null) {
+                            metrics.error();
+                        }
+                        onError(throwable);
+                    }
+
+                    private void close() {
+                        if (pooled) {
+                            JsonValuer.release(tokenizer);
+                        }
+                    }
 
-                            @Override
-                            public void onNext(JsonToken token) {
-                                tokenizer.parse(token);
-                            }
+                    @Override
+                    public void onNext(JsonToken token) {
+                        if (done) {
+                            return;
+                        }
+                        try {
+                            tokenizer.parse(token);
+                        } catch (Throwable e) {
+                            Exceptions.throwIfFatal(e);
+                            unsubscribe();
+                            fail(e);
                         }
-                );
+                    }
+                };
+                subscriber.add(tokenSubscriber);
+                source.subscribe(tokenSubscriber);
             }
         });
 
@@ -6,7 +6,6 @@ import java.nio.CharBuffer;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.NoSuchElementException;
 
 /**
  *
@@ -14,195 +13,169 @@ import java.util.NoSuchElementException;
  * @author Jitendra Kotamraju
  */
 final class JsonValuer {
-    private final Subscriber<? super JsonValue> subscriber;
-    private Context context;
-    private final Stack stack;
+    // Idle valuers, see acquire()
+    private static final InstancePool<JsonValuer> POOL = new InstancePool<>(256);
+
+    private Subscriber<? super JsonValue> subscriber;
+    private final ContainerStack containers = new ContainerStack();
+    // The arrays and objects being built, and the current key of the objects, by depth
+    private JsonValue[] values = new JsonValue[16];
+    private String[] keys = new String[16];
+    private JsonStringCache stringCache;
+    private boolean views;
 
     JsonValuer(Subscriber<? super JsonValue> subscriber) {
         this.subscriber = subscriber;
-        this.stack = new Stack();
-        this.context = new ValueContext();
     }
 
-    private static final class Stack {
-        private Context head;
-
-        private void push(Context context) {
-            context.next = head;
-            head = context;
+    /**
+     * Returns an idle valuer that is reset for the subscriber, or a new one.
+     * Give it back with {@link #release} when its stream is done.
+     */
+    static JsonValuer acquire(Subscriber<? super JsonValue> subscriber) {
+        JsonValuer valuer = POOL.poll();
+        if (valuer == null) {
+            return new JsonValuer(subscriber);
         }
+        valuer.reset(subscriber);
+        return valuer;
+    }
 
-        private Context pop() {
-            if (head == null) {
-                throw new NoSuchElementException();
-            }
-            Context temp = head;
-            head = head.next;
-            return temp;
-        }
+    /**
+     * Keeps the valuer for a later {@link #acquire}. The valuer must not be
+     * used after this.
+     */
+    static void release(JsonValuer valuer) {
+        valuer.reset(null);
+        valuer.stringCache(null);
+        valuer.views(false);
+        POOL.offer(valuer);
+    }
 
-        private boolean isEmpty() {
-            return head == null;
+    /**
+     * Starts a new stream of tokens, dropping an unfinished value.
+     */
+    void reset(Subscriber<? super JsonValue> subscriber) {
+        this.subscriber = subscriber;
+        for (int depth = containers.depth(); depth > 0; depth--) {
+            values[depth] = null;
+            keys[depth] = null;
         }
+        containers.clear();
     }
 
-    private abstract class Context {
-        Context next;
-
-        abstract void parse(JsonToken token);
-        abstract JsonValue value();
-        abstract void add(JsonValue value);
+    /**
+     * Takes short strings from the given cache, or makes a new one for every
+     * string if it is null.
+     */
+    void stringCache(JsonStringCache stringCache) {
+        this.stringCache = stringCache;
     }
 
-    private final class ValueContext extends Context {
-        void parse(JsonToken token) {
-            switch (token.event()) {
-                case START_OBJECT:
-                    stack.push(this);
-                    context = new ObjectContext();
-                    break;
-                case START_ARRAY:
-                    stack.push(this);
-                    context = new ArrayContext();
-                    break;
-                case KEY:
-                    throw new IllegalStateException();
-                case VALUE_STRING:
-                    subscriber.onNext(new JsonString(token.buffer().toString()));
-                    break;
-                case VALUE_NUMBER:
-                    subscriber.onNext(new JsonNumber(token.buffer()));
-                    break;
-                case VALUE_TRUE:
-                    subscriber.onNext(JsonValue.TRUE);
-                    break;
-                case VALUE_FALSE:
-                    subscriber.onNext(JsonValue.FALSE);
-                    break;
-                case VALUE_NULL:
-                    subscriber.onNext(JsonValue.NULL);
-                    break;
-                case END_ARRAY:
-                case END_OBJECT:
-                    throw new IllegalStateException();
-            }
-
-        }
-
-        JsonValue value() {
-            throw new IllegalStateException();
-        }
+    /**
+     * Makes strings and numbers views of the tokenizer's chars when they
+     * stay, instead of copies.
+     */
+    void views(boolean views) {
+        this.views = views;
+    }
 
-        void add(JsonValue value) {
-            subscriber.onNext(value);
+    void parse(JsonToken token) {
+        switch (token.event()) {
+            case START_OBJECT:
+                push(ContainerStack.OBJECT, new JsonObject());
+                break;
+            case START_ARRAY:
+                push(ContainerStack.ARRAY, new JsonArray());
+                break;
+            case KEY:
+                if (containers.peek() != ContainerStack.OBJECT) {
+                    throw unexpected(token);
+                }
+                keys[containers.depth()] = token.buffer().toString();
+                break;
+            case VALUE_STRING:
+                add(string(token));
+                break;
+            case VALUE_NUMBER:
+                add(JsonNumber.of(token, views));
+                break;
+            case VALUE_TRUE:
+                add(JsonValue.TRUE);
+                break;
+            case VALUE_FALSE:
+                add(JsonValue.FALSE);
+                break;
+            case VALUE_NULL:
+                add(JsonValue.NULL);
+                break;
+            case END_ARRAY:
+                pop(ContainerStack.ARRAY, token);
+                break;
+            case END_OBJECT:
+                pop(ContainerStack.OBJECT, token);
+                break;
         }
-
-
     }
 
-    private final class ArrayContext extends Context {
-        JsonArray array = new JsonArray();
-
-        void parse(JsonToken token) {
-            switch (token.event()) {
-                case START_OBJECT:
-                    stack.push(this);
-                    context = new ObjectContext();
-                    break;
-                case START_ARRAY:
-                    stack.push(this);
-                    context = new ArrayContext();
-                    break;
-                case KEY:
-                    throw new IllegalStateException();
-                case VALUE_STRING:
-                    array.add(new JsonString(token.buffer().toString()));
-                    break;
-                case VALUE_NUMBER:
-                    array.add(new JsonNumber(token.buffer()));
-                    break;
-                case VALUE_TRUE:
-                    array.add(JsonValue.TRUE);
-                    break;
-                case VALUE_FALSE:
-                    array.add(JsonValue.FALSE);
-                    break;
-                case VALUE_NULL:
-                    array.add(JsonValue.NULL);
-                    break;
-                case END_ARRAY:
-                    context = stack.pop();
-                    context.add(array);
-                    break;
-                case END_OBJECT:
-                    throw new IllegalStateException();
-
+    private JsonString string(JsonToken token) {
+        if (stringCache != null) {
+            JsonString string = stringCache.intern(token);
+            if (string != null) {
+                return string;
             }
         }
+        return JsonString.of(token, views);
+    }
 
-        JsonArray value() {
-            return array;
-        }
-
-        void add(JsonValue value) {
-            array.add(value);
+    private void push(byte type, JsonValue container) {
+        containers.push(type);
+        int depth = containers.depth();
+        if (depth == values.length) {
+            values = Arrays.copyOf(values, 2 * depth);
+            keys = Arrays.copyOf(keys, 2 * depth);
         }
-
+        values[depth] = container;
     }
 
-    private final class ObjectContext extends Context {
-        JsonObject object = new JsonObject();
-        String key;
-
-        void parse(JsonToken token) {
-            switch (token.event()) {
-                case START_OBJECT:
-                    stack.push(this);
-                    context = new ObjectContext();
-                    break;
-                case START_ARRAY:
-                    stack.push(this);
-                    context = new ArrayContext();
-                    break;
-                case KEY:
-                    key = token.buffer().toString();
-                    break;
-                case VALUE_STRING:
-                    object.add(key, new JsonString(token.buffer().toString()));
-                    break;
-                case VALUE_NUMBER:
-                    object.add(key, new JsonNumber(token.buffer()));
-                    break;
-                case VALUE_TRUE:
-                    object.add(key, JsonValue.TRUE);
-                    break;
-                case VALUE_FALSE:
-                    object.add(key, JsonValue.FALSE);
-                    break;
-                case VALUE_NULL:
-                    object.add(key, JsonValue.NULL);
-                    break;
-                case END_ARRAY:
-                    throw new IllegalStateException();
-                case END_OBJECT:
-                    context = stack.pop();
-                    context.add(object);
-                    break;
-            }
+    private void pop(byte type, JsonToken token) {
+        if (containers.peek() != type) {
+            throw unexpected(token);
         }
+        int depth = containers.depth();
+        JsonValue container = values[depth];
+        // Not kept around after the value is done
+        values[depth] = null;
+        keys[depth] = null;
+        containers.pop();
+        add(container);
+    }
 
-        JsonObject value() {
-            return object;
+    private void add(JsonValue value) {
+        int depth = containers.depth();
+        switch (containers.peek()) {
+            case ContainerStack.NONE:
+                subscriber.onNext(value);
+                break;
+            case ContainerStack.ARRAY:
+                ((JsonArray) values[depth]).add(value);
+                break;
+            default:
+                ((JsonObject) values[depth]).add(keys[depth], value);
+                break;
         }
+    }
 
-        void add(JsonValue value) {
-            object.add(key, value);
+    /**
+     * Called at the end of the tokens, fails if a value is unfinished.
+     */
+    void finish() {
+        if (containers.depth() != 0) {
+            throw new JsonParseException("Unexpected end of tokens", -1, -1, -1);
         }
-
     }
 
-    void parse(JsonToken token) {
-        System.out.println(token);
-        context.parse(token);
+    private static JsonParseException unexpected(JsonToken token) {
+        return new JsonParseException("Unexpected token " + token, token.start(), -1, -1);
     }
 }
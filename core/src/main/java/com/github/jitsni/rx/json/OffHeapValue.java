@@ -0,0 +1,330 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jitsni.rx.json;
+
+import rx.Observable;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Read-only view of a JSON value that is stored off-heap. Navigating the view
+ * creates only small view objects, the value itself is never copied to heap
+ * unless {@link #toJsonValue()} is called.
+ *
+ * <p>
+ * Layout of a value in the region:
+ * <pre>
+ * string, number : tag, int byte length, utf-8 bytes
+ * true/false/null: tag
+ * array          : tag, int byte length of elements, int count, elements
+ * object         : tag, int byte length of entries, int count,
+ *                  (int key byte length, utf-8 key bytes, value)*
+ * </pre>
+ * The byte length of a container lets a reader skip it without walking it.
+ *
+ * @author Jitendra Kotamraju
+ */
+public final class OffHeapValue implements JsonValue {
+    static final byte STRING = 1;
+    static final byte NUMBER = 2;
+    static final byte TRUE = 3;
+    static final byte FALSE = 4;
+    static final byte NULL = 5;
+    static final byte ARRAY = 6;
+    static final byte OBJECT = 7;
+
+    // tag + byte length + count
+    static final int HEADER = 9;
+
+    private final ByteBuffer region;
+    private final int offset;
+
+    OffHeapValue(ByteBuffer region, int offset) {
+        this.region = region;
+        this.offset = offset;
+    }
+
+    @Override
+    public ValueType getValueType() {
+        switch (region.get(offset)) {
+            case STRING:
+                return ValueType.STRING;
+            case NUMBER:
+                return ValueType.NUMBER;
+            case TRUE:
+                return ValueType.TRUE;
+            case FALSE:
+                return ValueType.FALSE;
+            case NULL:
+                return ValueType.NULL;
+            case ARRAY:
+                return ValueType.ARRAY;
+            case OBJECT:
+                return ValueType.OBJECT;
+            default:
+                throw new IllegalStateException("Unknown tag = " + region.get(offset));
+        }
+    }
+
+    /**
+     * @return number of elements of an array or entries of an object
+     * @throws IllegalStateException if this is not an array or object
+     */
+    public int size() {
+        checkContainer();
+        return region.getInt(offset + 5);
+    }
+
+    /**
+     * Returns the element of an array or the value of an object entry at the
+     * given position.
+     *
+     * @throws IndexOutOfBoundsException if the index is not less than {@link #size()}
+     */
+    public OffHeapValue get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index = " + index + " size = " + size());
+        }
+        boolean object = region.get(offset) == OBJECT;
+        int i = offset + HEADER;
+        for (int n = 0; n < index; n++) {
+            i = end(object ? skipKey(i) : i);
+        }
+        return new OffHeapValue(region, object ? skipKey(i) : i);
+    }
+
+    /**
+     * Returns the key of the object entry at the given position.
+     */
+    public String key(int index) {
+        if (region.get(offset) != OBJECT) {
+            throw new IllegalStateException("Not an object, but " + getValueType());
+        }
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index = " + index + " size = " + size());
+        }
+        int i = offset + HEADER;
+        for (int n = 0; n < index; n++) {
+            i = end(skipKey(i));
+        }
+        return Utf8.decode(region, i + 4, region.getInt(i));
+    }
+
+    /**
+     * Looks up an object entry. The key is compared with the stored bytes, so
+     * a lookup doesn't create any strings.
+     *
+     * @return value of the entry, or null if there is no such key
+     */
+    public OffHeapValue get(String key) {
+        if (region.get(offset) != OBJECT) {
+            throw new IllegalStateException("Not an object, but " + getValueType());
+        }
+        int count = region.getInt(offset + 5);
+        int i = offset + HEADER;
+        for (int n = 0; n < count; n++) {
+            int length = region.getInt(i);
+            int value = i + 4 + length;
+            if (Utf8.equals(region, i + 4, length, key)) {
+                return new OffHeapValue(region, value);
+            }
+            i = end(value);
+        }
+        return null;
+    }
+
+    /**
+     * Copies this value to heap.
+     */
+    public JsonValue toJsonValue() {
+        switch (region.get(offset)) {
+            case STRING:
+                return new JsonString(toString());
+            case NUMBER:
+                return new JsonNumber(toString());
+            case TRUE:
+                return JsonValue.TRUE;
+            case FALSE:
+                return JsonValue.FALSE;
+            case NULL:
+                return JsonValue.NULL;
+            case ARRAY: {
+                JsonArray array = new JsonArray();
+                int i = offset + HEADER;
+                for (int n = size(); n > 0; n--) {
+                    array.add(new OffHeapValue(region, i).toJsonValue());
+                    i = end(i);
+                }
+                return array;
+            }
+            default: {
+                JsonObject object = new JsonObject();
+                int i = offset + HEADER;
+                for (int n = size(); n > 0; n--) {
+                    String key = Utf8.decode(region, i + 4, region.getInt(i));
+                    i = skipKey(i);
+                    object.add(key, new OffHeapValue(region, i).toJsonValue());
+                    i = end(i);
+                }
+                return object;
+            }
+        }
+    }
+
+    @Override
+    public Observable<JsonValue> observable() {
+        if (region.get(offset) == ARRAY) {
+            Iterable<JsonValue> elements = this::elements;
+            return Observable.from(elements);
+        }
+        return Observable.just(this);
+    }
+
+    @Override
+    public Stream<JsonValue> stream() {
+        if (region.get(offset) == ARRAY) {
+            int characteristics = Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+            return StreamSupport.stream(Spliterators.spliterator(elements(), size(), characteristics), false);
+        }
+        return Collections.<JsonValue>singleton(this).stream();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof OffHeapValue) {
+            OffHeapValue other = (OffHeapValue) obj;
+            int length = end(offset) - offset;
+            if (length != other.end(other.offset) - other.offset) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (region.get(offset + i) != other.region.get(other.offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = offset, end = end(offset); i < end; i++) {
+            hash = 31 * hash + region.get(i);
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        switch (region.get(offset)) {
+            case STRING:
+            case NUMBER:
+                return Utf8.decode(region, offset + 5, region.getInt(offset + 1));
+            case TRUE:
+                return "true";
+            case FALSE:
+                return "false";
+            case NULL:
+                return "null";
+            case ARRAY: {
+                StringBuilder sb = new StringBuilder("[");
+                int i = offset + HEADER;
+                for (int n = size(); n > 0; n--) {
+                    sb.append(new OffHeapValue(region, i));
+                    i = end(i);
+                    if (n > 1) {
+                        sb.append(", ");
+                    }
+                }
+                return sb.append(']').toString();
+            }
+            default: {
+                StringBuilder sb = new StringBuilder("{");
+                int i = offset + HEADER;
+                for (int n = size(); n > 0; n--) {
+                    sb.append(Utf8.decode(region, i + 4, region.getInt(i))).append('=');
+                    i = skipKey(i);
+                    sb.append(new OffHeapValue(region, i));
+                    i = end(i);
+                    if (n > 1) {
+                        sb.append(", ");
+                    }
+                }
+                return sb.append('}').toString();
+            }
+        }
+    }
+
+    // The elements of an array, each found at the end of the one before, so that
+    // going through them is linear unlike a get(index) for each
+    private Iterator<JsonValue> elements() {
+        int count = size();
+        return new Iterator<JsonValue>() {
+            private int n;
+            private int i = offset + HEADER;
+
+            @Override
+            public boolean hasNext() {
+                return n < count;
+            }
+
+            @Override
+            public JsonValue next() {
+                if (n == count) {
+                    throw new NoSuchElementException();
+                }
+                OffHeapValue element = new OffHeapValue(region, i);
+                i = end(i);
+                n++;
+                return element;
+            }
+        };
+    }
+
+    private void checkContainer() {
+        byte tag = region.get(offset);
+        if (tag != ARRAY && tag != OBJECT) {
+            throw new IllegalStateException("Not an array or object, but " + getValueType());
+        }
+    }
+
+    private int skipKey(int i) {
+        return i + 4 + region.getInt(i);
+    }
+
+    // Position just after the value at i
+    private int end(int i) {
+        switch (region.get(i)) {
+            case STRING:
+            case NUMBER:
+                return i + 5 + region.getInt(i + 1);
+            case ARRAY:
+            case OBJECT:
+                return i + HEADER + region.getInt(i + 1);
+            default:
+                return i + 1;
+        }
+    }
+}
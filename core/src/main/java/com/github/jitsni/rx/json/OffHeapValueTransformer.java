@@ -0,0 +1,105 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jitsni.rx.json;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.exceptions.Exceptions;
+
+/**
+ * Like {@link JsonValueTransformer}, but stores the values off-heap and emits
+ * {@link OffHeapValue} views of them. Meant for big documents that are kept
+ * around for lookups, where a heap tree would add to GC pause times.
+ *
+ * @author Jitendra Kotamraju
+ */
+public class OffHeapValueTransformer implements Observable.Transformer<JsonToken, JsonValue> {
+    private final int regionCapacity;
+
+    public OffHeapValueTransformer() {
+        this(64 * 1024);
+    }
+
+    /**
+     * @param regionCapacity initial size in bytes of the direct buffers that
+     *      hold the values. Bigger values get a region of their own
+     */
+    public OffHeapValueTransformer(int regionCapacity) {
+        this.regionCapacity = regionCapacity;
+    }
+
+    @Override
+    public Observable<JsonValue> call(Observable<JsonToken> source) {
+        Observable<JsonValue> valueObservable = Observable.create(new Observable.OnSubscribe<JsonValue>() {
+            @Override
+            public void call(Subscriber<? super JsonValue> subscriber) {
+                final OffHeapWriter writer = new OffHeapWriter(regionCapacity);
+
+                Subscriber<JsonToken> tokenSubscriber = new Subscriber<JsonToken>() {
+                    private boolean done;
+
+                    @Override
+                    public void onCompleted() {
+                        if (done) {
+                            return;
+                        }
+                        try {
+                            writer.finish();
+                        } catch (JsonParseException e) {
+                            onError(e);
+                            return;
+                        }
+                        done = true;
+                        subscriber.onCompleted();
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        subscriber.onError(throwable);
+                    }
+
+                    @Override
+                    public void onNext(JsonToken token) {
+                        if (done) {
+                            return;
+                        }
+                        OffHeapValue value;
+                        try {
+                            value = writer.write(token);
+                        } catch (Throwable e) {
+                            Exceptions.throwIfFatal(e);
+                            unsubscribe();
+                            onError(e);
+                            return;
+                        }
+                        if (value != null) {
+                            subscriber.onNext(value);
+                        }
+                    }
+                };
+                subscriber.add(tokenSubscriber);
+                source.subscribe(tokenSubscriber);
+            }
+        });
+
+        return valueObservable;
+    }
+
+}
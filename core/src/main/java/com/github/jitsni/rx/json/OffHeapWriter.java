@@ -0,0 +1,173 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jitsni.rx.json;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.github.jitsni.rx.json.OffHeapValue.ARRAY;
+import static com.github.jitsni.rx.json.OffHeapValue.FALSE;
+import static com.github.jitsni.rx.json.OffHeapValue.HEADER;
+import static com.github.jitsni.rx.json.OffHeapValue.NULL;
+import static com.github.jitsni.rx.json.OffHeapValue.NUMBER;
+import static com.github.jitsni.rx.json.OffHeapValue.OBJECT;
+import static com.github.jitsni.rx.json.OffHeapValue.STRING;
+import static com.github.jitsni.rx.json.OffHeapValue.TRUE;
+
+/**
+ * Writes tokens into a direct buffer in the {@link OffHeapValue} layout.
+ * Top-level values share a region; when a value doesn't fit, only that
+ * value is moved to a bigger region and the earlier values stay where they
+ * are (their views keep the old region alive). So the regions are not
+ * taken from a {@link BufferPool}: there is no point where they could be
+ * given back.
+ *
+ * @author Jitendra Kotamraju
+ */
+final class OffHeapWriter {
+    private final int regionCapacity;
+    private ByteBuffer region;
+    private ByteBuffer readOnly;
+    private int valueStart;
+
+    // Positions of the open containers' headers and their element counts
+    private int[] starts = new int[16];
+    private int[] counts = new int[16];
+    private int depth;
+
+    OffHeapWriter(int regionCapacity) {
+        this.regionCapacity = regionCapacity;
+    }
+
+    /**
+     * @return view of the top-level value that this token completes, otherwise null
+     */
+    OffHeapValue write(JsonToken token) {
+        if (region == null) {
+            newRegion(regionCapacity);
+        }
+        if (depth == 0) {
+            valueStart = region.position();
+        }
+        switch (token.event()) {
+            case START_OBJECT:
+                startContainer(OBJECT);
+                return null;
+            case START_ARRAY:
+                startContainer(ARRAY);
+                return null;
+            case KEY:
+                counts[depth - 1]++;
+                writeChars(token, -1);
+                return null;
+            case VALUE_STRING:
+                writeChars(token, STRING);
+                break;
+            case VALUE_NUMBER:
+                writeChars(token, NUMBER);
+                break;
+            case VALUE_TRUE:
+                writeTag(TRUE);
+                break;
+            case VALUE_FALSE:
+                writeTag(FALSE);
+                break;
+            case VALUE_NULL:
+                writeTag(NULL);
+                break;
+            case END_ARRAY:
+            case END_OBJECT:
+                endContainer();
+                break;
+        }
+        return depth == 0 ? new OffHeapValue(readOnly, valueStart) : null;
+    }
+
+    /**
+     * Called at the end of the tokens, fails if a value is unfinished.
+     */
+    void finish() {
+        if (depth != 0) {
+            throw new JsonParseException("Unexpected end of tokens", -1, -1, -1);
+        }
+    }
+
+    private void startContainer(byte tag) {
+        countValue();
+        ensure(HEADER);
+        if (depth == starts.length) {
+            starts = Arrays.copyOf(starts, 2 * depth);
+            counts = Arrays.copyOf(counts, 2 * depth);
+        }
+        starts[depth] = region.position();
+        counts[depth++] = 0;
+        region.put(tag).putInt(0).putInt(0);
+    }
+
+    private void endContainer() {
+        int start = starts[--depth];
+        region.putInt(start + 1, region.position() - start - HEADER);
+        region.putInt(start + 5, counts[depth]);
+    }
+
+    private void writeTag(byte tag) {
+        countValue();
+        ensure(1);
+        region.put(tag);
+    }
+
+    // Writes [tag] length utf-8 bytes, keys are written without a tag
+    private void writeChars(JsonToken token, int tag) {
+        if (tag != -1) {
+            countValue();
+        }
+        CharSequence chars = token.buffer();
+        ensure(5 + Utf8.maxBytes(chars.length()));
+        if (tag != -1) {
+            region.put((byte) tag);
+        }
+        int lengthAt = region.position();
+        region.position(lengthAt + 4);
+        region.putInt(lengthAt, Utf8.encode(chars, region));
+    }
+
+    // Object entries are counted at their keys
+    private void countValue() {
+        if (depth > 0 && region.get(starts[depth - 1]) == ARRAY) {
+            counts[depth - 1]++;
+        }
+    }
+
+    private void ensure(int bytes) {
+        if (region.remaining() < bytes) {
+            int used = region.position() - valueStart;
+            ByteBuffer old = region;
+            newRegion(Math.max(regionCapacity, 2 * (used + bytes)));
+            old.limit(old.position());
+            old.position(valueStart);
+            region.put(old);
+            for (int i = 0; i < depth; i++) {
+                starts[i] -= valueStart;
+            }
+            valueStart = 0;
+        }
+    }
+
+    private void newRegion(int capacity) {
+        region = ByteBuffer.allocateDirect(capacity);
+        readOnly = region.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json;
+
+import rx.Observable;
+import rx.Scheduler;
+
+import java.nio.CharBuffer;
+
+/**
+ * Like {@link JsonTokenTransformer} followed by {@link JsonValueTransformer},
+ * but the values are built on the given scheduler while the next buffers are
+ * tokenized, so that the two stages of a single stream overlap on two cores.
+ *
+ * <p>
+ * Tokenizing stays on the thread that emits the buffers, as buffers from a
+ * pool (like the ones from {@link DecodeTransformer}) can be used only
+ * during {@code onNext}; use {@code subscribeOn} to move it. The tokens of a
+ * buffer are handed over as one {@link JsonTokenBatch} through the bounded
+ * queue of {@code observeOn}, and the demand of the value stage goes back
+ * upstream, so a fast tokenizer waits instead of filling up memory.
+ *
+ * @author Jitendra Kotamraju
+ */
+public class PipelinedValueTransformer implements Observable.Transformer<CharBuffer, JsonValue> {
+    private final Scheduler scheduler;
+    private JsonLimits limits = JsonLimits.NONE;
+    private int queueSize = 16;
+
+    /**
+     * @param scheduler the values are built on
+     */
+    public PipelinedValueTransformer(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Enforces the given limits on the input. By default there are no limits.
+     *
+     * @return this transformer
+     */
+    public PipelinedValueTransformer limits(JsonLimits limits) {
+        this.limits = limits;
+        return this;
+    }
+
+    /**
+     * @param queueSize maximum number of token batches, one per buffer, that
+     *      wait for the value stage. 16 by default
+     * @return this transformer
+     */
+    public PipelinedValueTransformer queueSize(int queueSize) {
+        this.queueSize = queueSize;
+        return this;
+    }
+
+    @Override
+    public Observable<JsonValue> call(Observable<CharBuffer> source) {
+        return source.compose(new JsonTokenBatchTransformer().limits(limits))
+                .observeOn(scheduler, true, queueSize)
+                .compose(new JsonBatchValueTransformer());
+    }
+}
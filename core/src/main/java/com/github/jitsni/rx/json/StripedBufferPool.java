@@ -0,0 +1,235 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jitsni.rx.json;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * {@link BufferPool} with power-of-two size classes. A released buffer goes to
+ * a small per-thread cache first and then to one of the shared stripes, so the
+ * common acquire/release on the same thread doesn't touch shared state. Buffers
+ * bigger than the largest size class are never pooled, and the stripes stop
+ * retaining buffers once {@code maxRetainedBytes} is reached. The per-thread
+ * caches hold at most two buffers of a size class and are not counted, as
+ * they go away with their thread.
+ *
+ * @author Jitendra Kotamraju
+ */
+public final class StripedBufferPool<B extends Buffer> implements BufferPool<B> {
+    private static final int LOCAL_SLOTS = 2;
+    private static final int STRIPE_SLOTS = 16;
+
+    private final IntFunction<B> allocator;
+    private final int bytesPerElement;
+    private final int minShift;
+    private final int classes;
+    private final long maxRetainedBytes;
+    private final Stripe<B>[] stripes;
+    private final ThreadLocal<Local<B>> locals;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    /**
+     * Pool of heap char buffers from 1K to 1M chars, retaining at most 64MB.
+     */
+    public static StripedBufferPool<CharBuffer> chars() {
+        return new StripedBufferPool<>(CharBuffer::allocate, 2, 1 << 10, 1 << 20, 64L << 20);
+    }
+
+    /**
+     * Pool of direct byte buffers from 8K to 1M bytes, retaining at most 64MB.
+     */
+    public static StripedBufferPool<ByteBuffer> directBytes() {
+        return new StripedBufferPool<>(ByteBuffer::allocateDirect, 1, 1 << 13, 1 << 20, 64L << 20);
+    }
+
+    /**
+     * @param allocator creates a buffer of the given capacity on a pool miss
+     * @param bytesPerElement size of a buffer element, used for accounting
+     * @param minCapacity capacity of the smallest size class
+     * @param maxCapacity capacity of the largest size class
+     * @param maxRetainedBytes upper bound on the bytes kept by the pool
+     */
+    public StripedBufferPool(IntFunction<B> allocator, int bytesPerElement, int minCapacity,
+                             int maxCapacity, long maxRetainedBytes) {
+        if (minCapacity <= 0 || maxCapacity < minCapacity) {
+            throw new IllegalArgumentException("Invalid capacities " + minCapacity + ", " + maxCapacity);
+        }
+        this.allocator = allocator;
+        this.bytesPerElement = bytesPerElement;
+        this.minShift = log2Ceil(minCapacity);
+        this.classes = log2Ceil(maxCapacity) - minShift + 1;
+        this.maxRetainedBytes = maxRetainedBytes;
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        Stripe<B>[] stripes = new Stripe[Integer.highestOneBit(processors)];
+        this.stripes = stripes;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe<>(classes);
+        }
+        this.locals = ThreadLocal.withInitial(() -> new Local<>(classes));
+    }
+
+    @Override
+    public B acquire(int capacity) {
+        int sizeClass = Math.max(log2Ceil(capacity) - minShift, 0);
+        if (sizeClass >= classes) {
+            misses.increment();
+            return allocator.apply(capacity);
+        }
+        B buffer = locals.get().poll(sizeClass);
+        if (buffer == null) {
+            buffer = stripe().queues[sizeClass].poll();
+            if (buffer == null) {
+                misses.increment();
+                return allocator.apply(1 << (sizeClass + minShift));
+            }
+            retainedBytes.addAndGet(-bytes(buffer));
+        }
+        hits.increment();
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public void release(B buffer) {
+        // Floor size class, so that a buffer always satisfies its class
+        int sizeClass = 31 - Integer.numberOfLeadingZeros(buffer.capacity()) - minShift;
+        if (sizeClass < 0 || sizeClass >= classes) {
+            drops.increment();
+            return;
+        }
+        if (locals.get().offer(sizeClass, buffer)) {
+            return;
+        }
+        long bytes = bytes(buffer);
+        if (retainedBytes.addAndGet(bytes) > maxRetainedBytes || !stripe().queues[sizeClass].offer(buffer)) {
+            retainedBytes.addAndGet(-bytes);
+            drops.increment();
+        }
+    }
+
+    /**
+     * @return number of acquires that were served from the pool
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of acquires that allocated a new buffer
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of released buffers that were not retained by the pool
+     */
+    public long drops() {
+        return drops.sum();
+    }
+
+    /**
+     * @return fraction of acquires that were served from the pool
+     */
+    public double hitRate() {
+        long hits = hits();
+        long total = hits + misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return bytes currently held by the shared stripes, the per-thread
+     *      caches are not counted
+     */
+    public long retainedBytes() {
+        return retainedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "StripedBufferPool[hits=" + hits() + ", misses=" + misses() + ", drops=" + drops()
+                + ", retainedBytes=" + retainedBytes() + "]";
+    }
+
+    private Stripe<B> stripe() {
+        return stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+    }
+
+    private long bytes(Buffer buffer) {
+        return (long) buffer.capacity() * bytesPerElement;
+    }
+
+    private static int log2Ceil(int n) {
+        return n <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+    }
+
+    private static final class Stripe<B> {
+        private final ArrayBlockingQueue<B>[] queues;
+
+        Stripe(int classes) {
+            @SuppressWarnings({"rawtypes", "unchecked"})
+            ArrayBlockingQueue<B>[] queues = new ArrayBlockingQueue[classes];
+            this.queues = queues;
+            for (int i = 0; i < classes; i++) {
+                queues[i] = new ArrayBlockingQueue<>(STRIPE_SLOTS);
+            }
+        }
+    }
+
+    private static final class Local<B> {
+        private final Object[][] slots;
+        private final int[] sizes;
+
+        Local(int classes) {
+            slots = new Object[classes][LOCAL_SLOTS];
+            sizes = new int[classes];
+        }
+
+        @SuppressWarnings("unchecked")
+        private B poll(int sizeClass) {
+            int size = sizes[sizeClass];
+            if (size == 0) {
+                return null;
+            }
+            sizes[sizeClass] = --size;
+            B buffer = (B) slots[sizeClass][size];
+            slots[sizeClass][size] = null;
+            return buffer;
+        }
+
+        private boolean offer(int sizeClass, B buffer) {
+            int size = sizes[sizeClass];
+            if (size == LOCAL_SLOTS) {
+                return false;
+            }
+            slots[sizeClass][size] = buffer;
+            sizes[sizeClass] = size + 1;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jitsni.rx.json;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * First stage of the indexed tokenizing in {@link JsonTokenizer}: finds the
+ * positions of a buffer where tokens start, 64 chars at a time.
+ *
+ * <p>
+ * Each char is classified with one table lookup into a 16 bit lane per
+ * class, so that 16 chars fill a {@code long} with a shift and an or each,
+ * and the rest is done on whole 64 bit masks: backslashes that escape a char
+ * are found with carry arithmetic, the regions inside strings with a prefix
+ * xor of the unescaped quotes, and scalars as the starts of runs of other
+ * chars. The index of a block is then its structural chars and opening
+ * quotes outside of strings, plus the first chars of the scalars. The
+ * tokenizer walks the set bits with {@link #next()}, so it doesn't look at
+ * whitespace or, other than copying them, at the chars of strings.
+ *
+ * <p>
+ * The index is only about the positions; it is the walker that checks that
+ * what is there is valid.
+ *
+ * @author Jitendra Kotamraju
+ */
+final class StructuralIndex {
+    // Lanes of the classes, the other chars are scalar chars
+    private static final int QUOTE = 0;
+    private static final int BACKSLASH = 16;
+    private static final int STRUCTURAL = 32;
+    private static final int WHITESPACE = 48;
+
+    private static final long LANE = 0xFFFFL;
+    private static final long ODD_BITS = 0xAAAAAAAAAAAAAAAAL;
+
+    // Classes of the ascii chars, as a bit in the class's lane
+    private static final long[] CLASSES = new long[128];
+    static {
+        CLASSES['"'] = 1L << QUOTE;
+        CLASSES['\\'] = 1L << BACKSLASH;
+        for (char ch : "{}[]:,".toCharArray()) {
+            CLASSES[ch] = 1L << STRUCTURAL;
+        }
+        for (char ch : " \t\r\n".toCharArray()) {
+            CLASSES[ch] = 1L << WHITESPACE;
+        }
+    }
+
+    // Chars of the biggest buffer whose arrays trim() keeps
+    private static final int RETAINED_CHARS = 16 * 1024;
+
+    // The chars, and the array index of buffer position 0
+    private char[] chars;
+    private int offset;
+    private char[] copy = new char[0];
+
+    // Per block: positions of the tokens, the unescaped quotes and the whitespace
+    private long[] tokens = new long[16];
+    private long[] quotes = new long[16];
+    private long[] whitespaces = new long[16];
+    private int start;
+    private int blocks;
+
+    // Walking state of next()
+    private int block;
+    private long bits;
+
+    /**
+     * Indexes the remaining chars of the buffer, its position is not changed.
+     * A buffer without an array is copied to one.
+     */
+    void build(CharBuffer buffer) {
+        start = buffer.position();
+        int length = buffer.remaining();
+        if (buffer.hasArray()) {
+            chars = buffer.array();
+            offset = buffer.arrayOffset();
+        } else {
+            if (copy.length < length) {
+                copy = new char[Math.max(length, 2 * copy.length)];
+            }
+            buffer.duplicate().get(copy, 0, length);
+            chars = copy;
+            offset = -start;
+        }
+        blocks = (length + 63) >>> 6;
+        if (blocks > tokens.length) {
+            int capacity = Math.max(blocks, 2 * tokens.length);
+            tokens = Arrays.copyOf(tokens, capacity);
+            quotes = Arrays.copyOf(quotes, capacity);
+            whitespaces = Arrays.copyOf(whitespaces, capacity);
+        }
+
+        // Carried over from the block before: an escaping backslash at its
+        // end, being in a string, and a scalar run at its end
+        long escapedCarry = 0;
+        long inStringCarry = 0;
+        long scalarCarry = 0;
+        for (int b = 0; b < blocks; b++) {
+            int from = offset + start + (b << 6);
+            int n = Math.min(64, length - (b << 6));
+
+            long quote = 0;
+            long backslash = 0;
+            long structural = 0;
+            long whitespace = 0;
+            for (int g = 0; g < n; g += 16) {
+                long lanes = 0;
+                for (int i = 0, m = Math.min(16, n - g); i < m; i++) {
+                    char ch = chars[from + g + i];
+                    lanes |= (ch < 128 ? CLASSES[ch] : 0) << i;
+                }
+                quote |= (lanes >>> QUOTE & LANE) << g;
+                backslash |= (lanes >>> BACKSLASH & LANE) << g;
+                structural |= (lanes >>> STRUCTURAL & LANE) << g;
+                whitespace |= (lanes >>> WHITESPACE) << g;
+            }
+            long valid = n == 64 ? -1L : (1L << n) - 1;
+
+            // A backslash that is escaped itself doesn't escape. Subtracting
+            // the starts of the backslash runs from the odd bits carries
+            // through every run, which leaves the parity of each char in it.
+            long potential = backslash & ~escapedCarry;
+            long codes = ((potential << 1 | ODD_BITS) - potential) ^ ODD_BITS;
+            long escaped = codes ^ (backslash | escapedCarry);
+            long escape = codes & backslash;
+            escapedCarry = escape >>> 63;
+
+            // Each quote flips being in a string, an opening quote is in it and a closing one isn't
+            quote &= ~escaped;
+            long inString = quote;
+            inString ^= inString << 1;
+            inString ^= inString << 2;
+            inString ^= inString << 4;
+            inString ^= inString << 8;
+            inString ^= inString << 16;
+            inString ^= inString << 32;
+            inString ^= inStringCarry;
+            inStringCarry = inString >> 63;
+
+            long scalar = ~(quote | structural | whitespace) & ~inString & valid;
+            long scalarStarts = scalar & ~(scalar << 1 | scalarCarry);
+            scalarCarry = scalar >>> 63;
+
+            tokens[b] = (structural & ~inString) | (quote & inString) | scalarStarts;
+            quotes[b] = quote;
+            whitespaces[b] = whitespace & ~inString;
+        }
+        block = 0;
+        bits = blocks == 0 ? 0 : tokens[0];
+    }
+
+    /**
+     * Lets go of the chars, so that an index that is kept for the next
+     * buffer doesn't keep the array of this one alive.
+     */
+    void clear() {
+        chars = null;
+    }
+
+    /**
+     * Lets go of the chars and of arrays that grew for a big buffer, so
+     * that an idle index stays small.
+     */
+    void trim() {
+        clear();
+        if (copy.length > RETAINED_CHARS) {
+            copy = new char[0];
+        }
+        if (tokens.length > RETAINED_CHARS >>> 6) {
+            tokens = new long[16];
+            quotes = new long[16];
+            whitespaces = new long[16];
+        }
+    }
+
+    /**
+     * @return the indexed chars, see {@link #offset()}
+     */
+    char[] chars() {
+        return chars;
+    }
+
+    /**
+     * @return index in {@link #chars()} of buffer position 0
+     */
+    int offset() {
+        return offset;
+    }
+
+    /**
+     * @return true if the char may follow a scalar: whitespace, a structural
+     *      char or a quote
+     */
+    static boolean delimiter(char ch) {
+        return ch < 128 && CLASSES[ch] != 0 && ch != '\\';
+    }
+
+    /**
+     * @return buffer position of the next token start, or -1 at the end
+     */
+    int next() {
+        while (bits == 0) {
+            if (++block >= blocks) {
+                block = blocks;
+                return -1;
+            }
+            bits = tokens[block];
+        }
+        int i = Long.numberOfTrailingZeros(bits);
+        bits &= bits - 1;
+        return start + (block << 6) + i;
+    }
+
+    /**
+     * @return buffer position of the first unescaped quote after the given
+     *      position, or -1 if there is none
+     */
+    int quoteAfter(int position) {
+        int i = position + 1 - start;
+        int b = i >>> 6;
+        if (b >= blocks) {
+            return -1;
+        }
+        long mask = quotes[b] & (-1L << i);
+        while (mask == 0) {
+            if (++b >= blocks) {
+                return -1;
+            }
+            mask = quotes[b];
+        }
+        return start + (b << 6) + Long.numberOfTrailingZeros(mask);
+    }
+
+    /**
+     * @return number of newlines before the given buffer position
+     */
+    int newlines(int position) {
+        int count = 0;
+        int end = position - start;
+        for (int b = 0; b << 6 < end; b++) {
+            long mask = newlineCandidates(b, end);
+            while (mask != 0) {
+                if (chars[offset + start + (b << 6) + Long.numberOfTrailingZeros(mask)] == '\n') {
+                    count++;
+                }
+                mask &= mask - 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return buffer position of the last newline before the given one, or
+     *      -1 if there is none
+     */
+    int lastNewline(int position) {
+        int end = position - start;
+        for (int b = (end - 1) >> 6; b >= 0; b--) {
+            long mask = newlineCandidates(b, end);
+            while (mask != 0) {
+                int i = (b << 6) + 63 - Long.numberOfLeadingZeros(mask);
+                if (chars[offset + start + i] == '\n') {
+                    return start + i;
+                }
+                mask &= ~(1L << i);
+            }
+        }
+        return -1;
+    }
+
+    // Newlines are only in the whitespace outside of strings, up to the end offset
+    private long newlineCandidates(int block, int end) {
+        long mask = whitespaces[block];
+        return end - (block << 6) < 64 ? mask & ((1L << end) - 1) : mask;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jitsni.rx.json;
+
+import java.nio.ByteBuffer;
+
+/**
+ * UTF-8 conversions between chars and byte buffers that don't need a
+ * {@code CharsetEncoder}/{@code CharsetDecoder}. Unpaired surrogates are
+ * encoded as 3 byte sequences so that any char sequence round trips.
+ *
+ * @author Jitendra Kotamraju
+ */
+final class Utf8 {
+
+    private Utf8() {
+    }
+
+    /**
+     * @return maximum number of bytes needed to encode the given number of chars
+     */
+    static int maxBytes(int chars) {
+        return 3 * chars;
+    }
+
+    /**
+     * @return number of bytes needed to encode the chars
+     */
+    static int length(CharSequence chars) {
+        int length = chars.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char ch = chars.charAt(i);
+            if (ch >= 0x800) {
+                if (Character.isHighSurrogate(ch) && i + 1 < length
+                        && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                    i++;                // 4 bytes for the pair
+                }
+                bytes += 2;
+            } else if (ch >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes the chars at the buffer's position, which must have room for
+     * {@link #maxBytes(int)} bytes.
+     *
+     * @return number of bytes written
+     */
+    static int encode(CharSequence chars, ByteBuffer dst) {
+        int start = dst.position();
+        int length = chars.length();
+        for (int i = 0; i < length; i++) {
+            char ch = chars.charAt(i);
+            if (ch < 0x80) {
+                dst.put((byte) ch);
+            } else if (ch < 0x800) {
+                dst.put((byte) (0xC0 | (ch >> 6)));
+                dst.put((byte) (0x80 | (ch & 0x3F)));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < length
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int cp = Character.toCodePoint(ch, chars.charAt(++i));
+                dst.put((byte) (0xF0 | (cp >> 18)));
+                dst.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                dst.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (cp & 0x3F)));
+            } else {
+                dst.put((byte) (0xE0 | (ch >> 12)));
+                dst.put((byte) (0x80 | ((ch >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (ch & 0x3F)));
+            }
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Decodes the bytes in {@code [offset, offset+length)} without changing
+     * the buffer's position.
+     */
+    static String decode(ByteBuffer src, int offset, int length) {
+        char[] chars = new char[length];
+        int n = 0;
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int b = src.get(i);
+            if (b >= 0) {
+                chars[n++] = (char) b;
+                i++;
+            } else {
+                int cp = codePoint(src, i, b);
+                i += sequenceLength(b);
+                if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    chars[n++] = Character.highSurrogate(cp);
+                    chars[n++] = Character.lowSurrogate(cp);
+                } else {
+                    chars[n++] = (char) cp;
+                }
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * Compares the encoded bytes in {@code [offset, offset+length)} with the
+     * chars without decoding them to a string.
+     */
+    static boolean equals(ByteBuffer src, int offset, int length, CharSequence chars) {
+        int n = chars.length();
+        if (length < n) {
+            return false;               // every char needs at least a byte
+        }
+        int end = offset + length;
+        int i = offset;
+        int j = 0;
+        while (i < end) {
+            int b = src.get(i);
+            if (b >= 0) {
+                if (j >= n || chars.charAt(j++) != b) {
+                    return false;
+                }
+                i++;
+            } else {
+                int cp = codePoint(src, i, b);
+                i += sequenceLength(b);
+                if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    if (j + 1 >= n || chars.charAt(j) != Character.highSurrogate(cp)
+                            || chars.charAt(j + 1) != Character.lowSurrogate(cp)) {
+                        return false;
+                    }
+                    j += 2;
+                } else if (j >= n || chars.charAt(j++) != cp) {
+                    return false;
+                }
+            }
+        }
+        return j == n;
+    }
+
+    private static int sequenceLength(int b) {
+        if ((b & 0xE0) == 0xC0) {
+            return 2;
+        } else if ((b & 0xF0) == 0xE0) {
+            return 3;
+        }
+        return 4;
+    }
+
+    private static int codePoint(ByteBuffer src, int i, int b) {
+        if ((b & 0xE0) == 0xC0) {
+            return ((b & 0x1F) << 6) | (src.get(i + 1) & 0x3F);
+        } else if ((b & 0xF0) == 0xE0) {
+            return ((b & 0x0F) << 12) | ((src.get(i + 1) & 0x3F) << 6) | (src.get(i + 2) & 0x3F);
+        }
+        return ((b & 0x07) << 18) | ((src.get(i + 1) & 0x3F) << 12)
+                | ((src.get(i + 2) & 0x3F) << 6) | (src.get(i + 3) & 0x3F);
+    }
+}
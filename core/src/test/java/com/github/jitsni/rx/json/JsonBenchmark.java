@@ -0,0 +1,407 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jitsni.rx.json;
+
+import rx.Observable;
+import rx.schedulers.Schedulers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Rough throughput numbers for the transformers. It is not a unit test, run
+ * it with {@code java ... com.github.jitsni.rx.json.JsonBenchmark}
+ *
+ * @author Jitendra Kotamraju
+ */
+public class JsonBenchmark {
+    private static final int WARMUP = 5;
+    private static final int RUNS = 10;
+
+    public static void main(String[] args) throws IOException {
+        String records = records(20_000);
+        System.out.println("document = " + records.length() / 1024 + "K chars");
+
+        binary(records);
+        chunks(records);
+        pipelined(records);
+        inflate(records);
+        bind(records);
+        keys(records);
+        literals();
+        nested();
+        small();
+        indexed(records);
+        strings();
+        cached();
+    }
+
+    // Log records whose strings are a few repeating values
+    private static void cached() {
+        String[] levels = { "INFO", "WARN", "ERROR" };
+        String[] regions = { "us-east-1", "us-west-2", "eu-west-1", "ap-south-1" };
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50_000; i++) {
+            sb.append("{\"level\": \"").append(levels[i % 3])
+                    .append("\", \"region\": \"").append(regions[i % 4])
+                    .append("\", \"status\": \"OK\", \"latency\": ").append(i % 100).append("}\n");
+        }
+        String logs = sb.toString();
+        List<CharBuffer> buffers = new ArrayList<>();
+        for (CharBuffer chunk : chunk(logs, 64 * 1024)) {
+            buffers.add(CharBuffer.wrap(chunk.toString().toCharArray()));
+        }
+        BufferPool<CharBuffer> pool = StripedBufferPool.chars();
+        JsonStringCache cache = new JsonStringCache(1024, 32);
+        run("repeated strings -> values, pooled", logs.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer().bufferPool(pool))
+                .compose(new JsonValueTransformer()));
+        run("repeated strings -> values, pooled, cached", logs.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer().bufferPool(pool))
+                .compose(new JsonValueTransformer().stringCache(cache)));
+        System.out.println(cache);
+    }
+
+    // Log records that are mostly a long plain message
+    private static void strings() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5_000; i++) {
+            sb.append("{\"level\": \"INFO\", \"message\": \"");
+            for (int j = 0; j < 10; j++) {
+                sb.append("request ").append(i).append(" handled by worker ").append(j).append(" in 12 ms; ");
+            }
+            sb.append("\"}\n");
+        }
+        String logs = sb.toString();
+        // Backed by arrays, as decoded chars are
+        List<CharBuffer> buffers = new ArrayList<>();
+        for (CharBuffer chunk : chunk(logs, 64 * 1024)) {
+            buffers.add(CharBuffer.wrap(chunk.toString().toCharArray()));
+        }
+        run("long strings -> tokens, 64K chunks", logs.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer()));
+        run("long strings -> tokens, 64K chunks, char states", logs.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer().limits(JsonLimits.DEFAULT)));
+        run("long strings -> values, 64K chunks", logs.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer()));
+        // The strings of the values refer to the tokenizer's chars
+        run("long strings -> values, 64K chunks, views", logs.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer().views(true)));
+        BufferPool<CharBuffer> pool = StripedBufferPool.chars();
+        run("long strings -> values, 64K chunks, pooled", logs.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer().bufferPool(pool))
+                .compose(new JsonValueTransformer()));
+    }
+
+    // A whole document in one buffer, from the structural index vs by the char states (limits turn the index off)
+    private static void indexed(String records) {
+        CharBuffer document = CharBuffer.wrap(records.toCharArray());
+        run("whole document -> tokens, indexed", records.length(), () -> Observable.just(document.duplicate())
+                .compose(new JsonTokenTransformer()));
+        run("whole document -> tokens, char states", records.length(), () -> Observable.just(document.duplicate())
+                .compose(new JsonTokenTransformer().limits(JsonLimits.DEFAULT)));
+    }
+
+    // A subscription per small document, like a request body
+    private static void small() {
+        String document = "{\"id\": 12, \"name\": \"abc\", \"tags\": [\"x\", \"y\"]}";
+        int count = 100_000;
+        BufferPool<CharBuffer> pool = StripedBufferPool.chars();
+        for (boolean pooled : new boolean[] { false, true }) {
+            JsonTokenTransformer tokens = new JsonTokenTransformer().bufferPool(pool).pooled(pooled);
+            JsonValueTransformer values = new JsonValueTransformer().pooled(pooled);
+            run("small documents -> values" + (pooled ? ", pooled" : ""), count * document.length(),
+                    () -> Observable.range(0, count).concatMap(i -> Observable.just(CharBuffer.wrap(document))
+                            .compose(tokens)
+                            .compose(values)));
+        }
+    }
+
+    // Small documents that are nested deeply, tracking the nesting dominates
+    private static void nested() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            for (int j = 0; j < 16; j++) {
+                sb.append(j % 2 == 0 ? "{\"a\":[" : "[");
+            }
+            sb.append(i);
+            for (int j = 15; j >= 0; j--) {
+                sb.append(j % 2 == 0 ? "]}" : "]");
+            }
+            sb.append('\n');
+        }
+        String nested = sb.toString();
+        List<CharBuffer> buffers = chunk(nested, 64 * 1024);
+        run("nested -> tokens, 64K chunks", nested.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer()));
+        run("nested -> values, 64K chunks", nested.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer()));
+    }
+
+    // Arrays of mostly true, false and null
+    private static void literals() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            sb.append("[true, false, null, true, null, false, false, true, null, 1]\n");
+        }
+        String literals = sb.toString();
+        List<CharBuffer> buffers = chunk(literals, 64 * 1024);
+        run("literals -> tokens, 64K chunks", literals.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer()));
+        List<CharBuffer> small = chunk(literals, 3);
+        run("literals -> tokens, 3 char chunks", literals.length(), () -> Observable.from(small)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer()));
+    }
+
+    // Matching the keys of every object to field indexes
+    private static void keys(String records) {
+        List<CharBuffer> buffers = chunk(records, 64 * 1024);
+        String[] names = {"id", "name", "active", "score", "tags", "address", "city", "zip"};
+        Map<String, Integer> map = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            map.put(names[i], i);
+        }
+        JsonKeySet keys = JsonKeySet.of(names);
+        run("text -> key indexes, String + HashMap", records.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer())
+                .filter(token -> token.event() == JsonToken.Id.KEY)
+                .map(token -> map.get(token.buffer().toString())));
+        run("text -> key indexes, JsonKeySet", records.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer())
+                .filter(token -> token.event() == JsonToken.Id.KEY)
+                .map(keys::index));
+    }
+
+    // Binding to objects vs building values
+    private static void bind(String records) {
+        List<CharBuffer> buffers = chunk(records, 64 * 1024);
+        run("text -> values -> records", records.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer())
+                .map(Record::of));
+        run("text -> records, bound", records.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonBindTransformer<>(Record.class)));
+    }
+
+    // Streaming gzip -> tokens vs decompressing all of it first
+    private static void inflate(String records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(records.getBytes(UTF_8));
+        }
+        byte[] gzip = bytes.toByteArray();
+        System.out.println("gzip = " + gzip.length / 1024 + "K bytes");
+        List<ByteBuffer> chunks = new ArrayList<>();
+        for (int i = 0; i < gzip.length; i += 64 * 1024) {
+            chunks.add(ByteBuffer.wrap(gzip, i, Math.min(64 * 1024, gzip.length - i)).slice());
+        }
+
+        BufferPool<ByteBuffer> bytePool = StripedBufferPool.directBytes();
+        BufferPool<CharBuffer> charPool = StripedBufferPool.chars();
+        run("gzip -> tokens, streaming", records.length(), () -> Observable.from(chunks)
+                .map(ByteBuffer::duplicate)
+                .compose(new InflateTransformer().bufferPool(bytePool))
+                .compose(new DecodeTransformer().bufferPool(charPool))
+                .compose(new JsonTokenTransformer()));
+        run("gzip -> tokens, inflate first", records.length(), () -> Observable.defer(() -> {
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+                byte[] buffer = new byte[64 * 1024];
+                for (int n; (n = in.read(buffer)) != -1; ) {
+                    inflated.write(buffer, 0, n);
+                }
+            } catch (IOException e) {
+                return Observable.error(e);
+            }
+            return Observable.just(CharBuffer.wrap(new String(inflated.toByteArray(), UTF_8)))
+                    .compose(new JsonTokenTransformer());
+        }));
+    }
+
+    // Tokenizing the same input delivered in chunks of different sizes
+    private static void chunks(String records) {
+        for (int size : new int[] { 1, 16, 256, 4096, 65536, 1 << 20 }) {
+            List<CharBuffer> buffers = chunk(records, size);
+            run("text -> tokens, " + size + " char chunks", records.length(), () -> Observable.from(buffers)
+                    .map(CharBuffer::duplicate)
+                    .compose(new JsonTokenTransformer()));
+        }
+    }
+
+    // Tokenizing and building values on one thread vs on two, and token by token vs in batches
+    private static void pipelined(String records) {
+        List<CharBuffer> buffers = chunk(records, 64 * 1024);
+        run("text -> values, 64K chunks", records.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer()));
+        run("text -> values, 64K chunks, pipelined", records.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new PipelinedValueTransformer(Schedulers.computation())));
+        run("text -> values, 64K chunks, batched", records.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenBatchTransformer())
+                .compose(new JsonBatchValueTransformer()));
+        run("text -> tokens, 64K chunks, batched", records.length(), () -> Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenBatchTransformer()));
+    }
+
+    // Views over the text, nothing is copied
+    static List<CharBuffer> chunk(String text, int size) {
+        CharBuffer all = CharBuffer.wrap(text);
+        List<CharBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < text.length(); i += size) {
+            all.limit(Math.min(i + size, text.length())).position(i);
+            buffers.add(all.slice());
+        }
+        return buffers;
+    }
+
+    // Text tokenizer + valuer vs decoding the binary encoding of the same values
+    private static void binary(String records) {
+        List<ByteBuffer> encoded = Observable.just(CharBuffer.wrap(records))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer())
+                .compose(new JsonBinaryEncoder())
+                .toList().toBlocking().single();
+        int bytes = 0;
+        for (ByteBuffer buffer : encoded) {
+            bytes += buffer.remaining();
+        }
+        System.out.println("binary = " + bytes / 1024 + "K bytes");
+
+        run("text -> values", records.length(), () -> Observable.just(CharBuffer.wrap(records))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer()));
+        run("binary -> values", records.length(), () -> Observable.from(encoded)
+                .compose(new JsonBinaryDecoder()));
+        run("text -> tokens", records.length(), () -> Observable.just(CharBuffer.wrap(records))
+                .compose(new JsonTokenTransformer()));
+        run("binary -> tokens", records.length(), () -> Observable.from(encoded)
+                .compose(JsonBinaryDecoder.tokens()));
+    }
+
+    static String records(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append("{\"id\": ").append(i)
+                    .append(", \"name\": \"user").append(i).append('"')
+                    .append(", \"active\": ").append(i % 3 == 0)
+                    .append(", \"score\": ").append(i * 0.25)
+                    .append(", \"tags\": [\"a\", \"b\", null]")
+                    .append(", \"address\": {\"city\": \"New York\", \"zip\": \"10021\"}}\n");
+        }
+        return sb.toString();
+    }
+
+    // One of the records(), bound by JsonBindTransformer
+    static final class Record {
+        int id;
+        String name;
+        boolean active;
+        double score;
+        List<String> tags;
+        Address address;
+
+        // The same record, filled from a value by hand
+        static Record of(JsonValue value) {
+            Record record = new Record();
+            for (Map.Entry<String, Object> entry : ((JsonObject) value).entries()) {
+                JsonValue field = (JsonValue) entry.getValue();
+                switch (entry.getKey()) {
+                    case "id":
+                        record.id = Integer.parseInt(field.toString());
+                        break;
+                    case "name":
+                        record.name = field.toString();
+                        break;
+                    case "active":
+                        record.active = field == JsonValue.TRUE;
+                        break;
+                    case "score":
+                        record.score = Double.parseDouble(field.toString());
+                        break;
+                    case "tags":
+                        record.tags = new ArrayList<>();
+                        for (JsonValue tag : ((JsonArray) field).values()) {
+                            record.tags.add(tag == JsonValue.NULL ? null : tag.toString());
+                        }
+                        break;
+                    case "address":
+                        record.address = new Address();
+                        for (Map.Entry<String, Object> a : ((JsonObject) field).entries()) {
+                            if (a.getKey().equals("city")) {
+                                record.address.city = a.getValue().toString();
+                            } else if (a.getKey().equals("zip")) {
+                                record.address.zip = a.getValue().toString();
+                            }
+                        }
+                        break;
+                }
+            }
+            return record;
+        }
+    }
+
+    static final class Address {
+        String city;
+        String zip;
+    }
+
+    static void run(String name, int chars, Supplier<Observable<?>> pipeline) {
+        for (int i = 0; i < WARMUP; i++) {
+            pipeline.get().toBlocking().lastOrDefault(null);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            pipeline.get().toBlocking().lastOrDefault(null);
+        }
+        long nanos = (System.nanoTime() - start) / RUNS;
+        System.out.printf("%-36s %8.2f ms %8.1f MB/s%n", name, nanos / 1e6, chars * 2 / (nanos / 1e3));
+    }
+}
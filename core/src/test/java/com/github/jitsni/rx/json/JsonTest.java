@@ -19,14 +19,37 @@ import org.junit.Test;
 import org.mockito.InOrder;
 import rx.Observable;
 import rx.Observer;
+import rx.Subscriber;
+import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
@@ -121,6 +144,141 @@ public class JsonTest {
         verify(observer, times(1)).onCompleted();
     }
 
+    @Test
+    public void pooledWiki() throws Exception {
+        StripedBufferPool<CharBuffer> pool = StripedBufferPool.chars();
+        JsonTokenTransformer tokenizer = new JsonTokenTransformer().bufferPool(pool);
+
+        verifyWikiValues(Observable.from(wikiBuffers())
+                .compose(tokenizer)
+                .compose(new JsonValueTransformer()));
+        assertEquals(0, pool.hits());
+
+        verifyWikiValues(Observable.from(wikiBuffers())
+                .compose(tokenizer)
+                .compose(new JsonValueTransformer()));
+        assertEquals(1, pool.hits());
+
+        // Buffers cached by a thread are not counted against the cap, they go away with the thread
+        StripedBufferPool<CharBuffer> fresh = StripedBufferPool.chars();
+        Thread thread = new Thread(() -> fresh.release(fresh.acquire(1 << 10)));
+        thread.start();
+        thread.join();
+        assertEquals(0, fresh.retainedBytes());
+        CharBuffer[] buffers = { fresh.acquire(1 << 10), fresh.acquire(1 << 10), fresh.acquire(1 << 10) };
+        for (CharBuffer buffer : buffers) {
+            fresh.release(buffer);
+        }
+        assertEquals(2 << 10, fresh.retainedBytes());
+    }
+
+    @Test
+    public void offHeapWiki() throws Exception {
+        OffHeapValue wiki = (OffHeapValue) Observable.from(wikiBuffers())
+                .compose(new JsonTokenTransformer())
+                .compose(new OffHeapValueTransformer(16))
+                .toBlocking().single();
+        verifyWikiValues(Observable.just(wiki.toJsonValue()));
+
+        assertEquals(5, wiki.size());
+        assertEquals("age", wiki.key(2));
+        assertEquals(JsonValue.ValueType.NUMBER, wiki.get("age").getValueType());
+        assertEquals("New York", wiki.get("address").get("city").toString());
+        assertEquals("646 555-4567", wiki.get("phoneNumber").get(1).get("number").toString());
+        assertEquals(null, wiki.get("middleName"));
+
+        OffHeapValue phones = wiki.get("phoneNumber");
+        List<JsonValue> elements = Arrays.asList(phones.get(0), phones.get(1));
+        assertEquals(elements, phones.observable().toList().toBlocking().single());
+        assertEquals(elements, phones.stream().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void binaryWiki() throws Exception {
+        List<ByteBuffer> encoded = Observable.from(wikiBuffers())
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer())
+                .compose(new JsonBinaryEncoder())
+                .toList().toBlocking().single();
+
+        verifyWikiValues(Observable.from(encoded).compose(new JsonBinaryDecoder()));
+        verifyWikiTokens(Observable.from(encoded).compose(JsonBinaryDecoder.tokens()));
+
+        // The scratch buffer of an encoding goes back to the pool
+        StripedBufferPool<ByteBuffer> pool = StripedBufferPool.directBytes();
+        JsonBinaryEncoder pooled = new JsonBinaryEncoder().bufferPool(pool);
+        for (int i = 0; i < 2; i++) {
+            verifyWikiValues(Observable.from(wikiBuffers())
+                    .compose(new JsonTokenTransformer())
+                    .compose(new JsonValueTransformer())
+                    .compose(pooled)
+                    .compose(new JsonBinaryDecoder()));
+        }
+        assertEquals(1, pool.hits());
+
+        // Corrupt buffers fail the stream with the byte offset of the problem
+        ByteBuffer whole = encoded.get(0);
+        ByteBuffer cut = (ByteBuffer) whole.duplicate().limit(whole.limit() / 2);
+        for (ByteBuffer corrupt : new ByteBuffer[] { ByteBuffer.wrap(new byte[] { 127 }), cut }) {
+            List<Throwable> errors = new ArrayList<>();
+            Observable.just(corrupt).compose(new JsonBinaryDecoder()).subscribe(value -> {}, errors::add);
+            Observable.just(corrupt).compose(JsonBinaryDecoder.tokens()).subscribe(token -> {}, errors::add);
+            assertEquals(2, errors.size());
+            for (Throwable error : errors) {
+                assertTrue(error instanceof JsonParseException);
+                assertTrue(((JsonParseException) error).offset() <= corrupt.limit());
+            }
+        }
+    }
+
+    @Test
+    public void metricsWiki() throws Exception {
+        JsonMetrics metrics = new JsonMetrics();
+        List<CharBuffer> buffers = wikiBuffers();
+
+        verifyWikiValues(Observable.from(buffers)
+                .compose(new JsonTokenTransformer().metrics(metrics))
+                .compose(new JsonValueTransformer().metrics(metrics)));
+
+        assertEquals(buffers.size(), metrics.buffers());
+        assertEquals(buffers.size(), metrics.chars());
+        assertEquals(4, metrics.tokens(JsonToken.Id.START_OBJECT));
+        assertEquals(13, metrics.tokens(JsonToken.Id.KEY));
+        assertEquals(10, metrics.tokens(JsonToken.Id.VALUE_STRING));
+        assertEquals(34, metrics.tokens());
+        assertEquals(1, metrics.values());
+        assertEquals(3, metrics.maxDepth());
+        assertEquals("21 2nd Street".length(), metrics.maxTokenLength());
+        assertEquals(0, metrics.errors());
+
+        // An error that goes through both stages is counted once
+        Observable.just(CharBuffer.wrap("{\"a\": tru}"))
+                .compose(new JsonTokenTransformer().metrics(metrics))
+                .compose(new JsonValueTransformer().metrics(metrics))
+                .onErrorResumeNext(Observable.empty())
+                .toBlocking().lastOrDefault(null);
+        assertEquals(1, metrics.errors());
+        // And one that the value stage raises is counted by it
+        Observable.just(JsonToken.START_OBJECT)
+                .compose(new JsonValueTransformer().metrics(metrics))
+                .onErrorResumeNext(Observable.empty())
+                .toBlocking().lastOrDefault(null);
+        assertEquals(2, metrics.errors());
+    }
+
+    private List<CharBuffer> wikiBuffers() throws Exception {
+        List<CharBuffer> buffers = new ArrayList<>();
+        CharBuffer buffer = CharBuffer.allocate(1);
+        try (Reader wikiReader = new InputStreamReader(JsonTest.class.getResourceAsStream("/wiki.json"), UTF_8)) {
+            while (wikiReader.read(buffer) > 0) {
+                buffer.flip();
+                buffers.add(buffer);
+                buffer = CharBuffer.allocate(1);
+            }
+        }
+        return buffers;
+    }
+
     @Test
     public void testWikiTokens() throws Exception {
         List<CharBuffer> buffers = new ArrayList<>();
@@ -301,4 +459,712 @@ public class JsonTest {
         verify(observer, times(1)).onCompleted();
     }
 
+    @Test
+    public void longStringTokens() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        String str = sb.toString();
+        CharBuffer[] buffers = new CharBuffer[1];
+        buffers[0] = CharBuffer.wrap("[\"" + str + "\", \"" + str + "\"]");
+
+        Observable<JsonToken> tokens = Observable.from(buffers)
+                .compose(new JsonTokenTransformer());
+
+        @SuppressWarnings("unchecked")
+        Observer<JsonToken> observer = mock(Observer.class);
+        tokens.subscribe(observer);
+        verify(observer, times(2)).onNext(new JsonToken(JsonToken.Id.VALUE_STRING, CharBuffer.wrap(str)));
+        verify(observer, never()).onError(any(Throwable.class));
+        verify(observer, times(1)).onCompleted();
+    }
+
+    @Test
+    public void limits() throws Exception {
+        JsonLimits limits = JsonLimits.NONE.withMaxDepth(3).withMaxStringLength(5)
+                .withMaxNumberLength(3).withMaxKeysPerObject(2).withMaxDocumentChars(40);
+
+        parseWithLimits("[[[1]]] [\"abcde\", 123] {\"a\":1, \"b\":2}", limits);
+        assertLimitException("[[[[1]]]]", limits, "Nesting is deeper than 3");
+        assertLimitException("[\"abcdef\"]", limits, "String is longer than 5 chars");
+        assertLimitException("{\"abcdef\": 1}", limits, "String is longer than 5 chars");
+        assertLimitException("[1234]", limits, "Number is longer than 3 chars");
+        assertLimitException("{\"a\":1, \"b\":2, \"c\":3}", limits, "Object has more than 2 keys");
+        assertLimitException("[1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14]", limits,
+                "Document is longer than 40 chars");
+
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < 5000; i++) {
+            sb.append('x');
+        }
+        assertLimitException(sb.toString(), limits.withMaxStringLength(2000), "String is longer than 2000 chars");
+    }
+
+    private void parseWithLimits(String json, JsonLimits limits) {
+        @SuppressWarnings("unchecked")
+        Subscriber<JsonToken> subscriber = mock(Subscriber.class);
+        new JsonTokenizer(subscriber, null, limits, null, false).parse(CharBuffer.wrap(json));
+    }
+
+    private void assertLimitException(String json, JsonLimits limits, String message) {
+        try {
+            parseWithLimits(json, limits);
+            fail("Expected JsonLimitException for " + json);
+        } catch (JsonLimitException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    @Test
+    public void parseErrors() throws Exception {
+        List<Throwable> errors = new ArrayList<>();
+        Observable.just(CharBuffer.wrap("[1, 2"), CharBuffer.wrap("x]"))
+                .compose(new JsonTokenTransformer())
+                .subscribe(token -> {}, errors::add);
+        assertEquals(1, errors.size());
+        JsonParseException e = (JsonParseException) errors.get(0);
+        assertEquals(5, e.offset());
+
+        errors.clear();
+        Observable.just(CharBuffer.wrap("[1, 2"))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer())
+                .subscribe(value -> {}, errors::add);
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof JsonParseException);
+
+        // A token that the off-heap stage can't write ends the stream with an error
+        errors.clear();
+        Observable.just(JsonToken.END_ARRAY)
+                .compose(new OffHeapValueTransformer())
+                .subscribe(value -> {}, errors::add);
+        assertEquals(1, errors.size());
+        // And so does a value that the tokens leave unfinished
+        errors.clear();
+        Observable.just(JsonToken.START_ARRAY)
+                .compose(new OffHeapValueTransformer())
+                .subscribe(value -> {}, errors::add);
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof JsonParseException);
+
+        JsonValue number = Observable.just(CharBuffer.wrap("25"))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer())
+                .toBlocking().single();
+        assertEquals(new JsonNumber("25"), number);
+    }
+
+    @Test
+    public void skipErrors() throws Exception {
+        List<JsonParseException> skipped = new ArrayList<>();
+        List<JsonValue> values = Observable.just(CharBuffer.wrap("{\"a\":1}\n{\"b\":x, \"c\""), CharBuffer.wrap(":2}\n{\"c\":3}\n"))
+                .compose(new JsonTokenTransformer().skipErrors(skipped::add))
+                .compose(new JsonValueTransformer())
+                .toList().toBlocking().single();
+        assertEquals(2, values.size());
+        assertEquals(1, skipped.size());
+        JsonObject expected = new JsonObject();
+        expected.add("c", new JsonNumber("3"));
+        assertEquals(expected, values.get(1));
+    }
+
+    @Test
+    public void offsets() throws Exception {
+        List<JsonToken> tokens = Observable.just(CharBuffer.wrap("[1,\n {\"ab\": "), CharBuffer.wrap("true}]"))
+                .compose(new JsonTokenTransformer().offsets(true))
+                .toList().toBlocking().single();
+        long[] expected = { 0, 1, 1, 2, 5, 6, 6, 10, 12, 16, 16, 17, 17, 18 };
+        assertEquals(expected.length / 2, tokens.size());
+        for (int i = 0; i < tokens.size(); i++) {
+            assertEquals(tokens.get(i).toString(), expected[2 * i], tokens.get(i).start());
+            assertEquals(tokens.get(i).toString(), expected[2 * i + 1], tokens.get(i).end());
+        }
+
+        try {
+            parseWithLimits("[1,\n  x]", JsonLimits.NONE);
+            fail();
+        } catch (JsonParseException e) {
+            assertEquals(6, e.offset());
+            assertEquals(2, e.line());
+            assertEquals(3, e.column());
+        }
+    }
+
+    @Test
+    public void index() throws Exception {
+        Path json = Files.createTempFile("records", ".json");
+        Path index = Files.createTempFile("records", ".idx");
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 5000; i++) {
+                sb.append("{\"id\": \"r").append(i).append("\", \"name\": \"n\u00e9\u20ac\uD83D\uDE00").append(i).append("\"}\n");
+            }
+            Files.write(json, sb.toString().getBytes(UTF_8));
+
+            assertEquals(5000, new JsonIndexBuilder().keyField("id").build(json, index));
+            try (JsonIndex records = JsonIndex.open(json, index)) {
+                assertEquals(5000, records.size());
+                JsonObject expected = new JsonObject();
+                expected.add("id", new JsonString("r4321"));
+                expected.add("name", new JsonString("n\u00e9\u20ac\uD83D\uDE004321"));
+                assertEquals(expected, records.get(4321));
+                assertEquals(expected, records.find("r4321"));
+                assertEquals(null, records.find("x"));
+            }
+
+            Files.write(json, "[1, \"two\", {\"a\": [3]}, null]".getBytes(UTF_8));
+            assertEquals(4, new JsonIndexBuilder().arrayElements(true).build(json, index));
+            try (JsonIndex records = JsonIndex.open(json, index)) {
+                assertEquals(new JsonString("two"), records.get(1));
+                assertEquals(JsonValue.NULL, records.get(3));
+                assertEquals(11, records.offset(2));
+                assertEquals(10, records.length(2));
+            }
+
+            // A container is not a key, nor is anything in it
+            Files.write(json, "{\"id\": [1, 2]}\n{\"id\": {\"n\": 3}}\n{\"id\": 4}\n".getBytes(UTF_8));
+            assertEquals(3, new JsonIndexBuilder().keyField("id").build(json, index));
+            try (JsonIndex records = JsonIndex.open(json, index)) {
+                assertEquals(null, records.find("1"));
+                assertEquals(null, records.find("3"));
+                assertEquals(records.get(2), records.find("4"));
+            }
+        } finally {
+            Files.delete(json);
+            Files.delete(index);
+        }
+    }
+
+    @Test
+    public void unicodeEscapes() throws Exception {
+        String json = "[\"a\\u00e9\\uD83D\\uDE00b\\u20AC\", {\"\\u0041\": 1}]";
+        // One char per buffer, so that every escape is split
+        CharBuffer[] buffers = new CharBuffer[json.length()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = CharBuffer.wrap(json, i, i + 1);
+        }
+        JsonValue value = Observable.from(buffers)
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer())
+                .toBlocking().single();
+        JsonArray expected = new JsonArray();
+        expected.add(new JsonString("a\u00e9\uD83D\uDE00b\u20AC"));
+        JsonObject object = new JsonObject();
+        object.add("A", new JsonNumber("1"));
+        expected.add(object);
+        assertEquals(expected, value);
+
+        assertParseException("[\"\\uD83Dx\"]", "Expecting a low surrogate");
+        assertParseException("[\"\\uD83D\\u0041\"]", "Expecting a low surrogate");
+        assertParseException("[\"\\uDE00\"]", "Unpaired low surrogate");
+        assertParseException("[\"\\u12G4\"]", "Invalid hex char");
+    }
+
+    private void assertParseException(String json, String message) {
+        try {
+            parseWithLimits(json, JsonLimits.NONE);
+            fail("Expected JsonParseException for " + json);
+        } catch (JsonParseException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    @Test
+    public void chunking() throws Exception {
+        String json = JsonBenchmark.records(20)
+                + "[\"a\\u00e9\\uD83D\\uDE00\\n\\\"\", -12.5e3, true, false, null, [], {}, \"\\uD83D\\uDE00\"]\n"
+                + "{\"bad\": tru}\n"
+                + "42\n";
+        List<String> expected = chunkedTokens(json, json.length(), 0);
+        assertEquals(1, expected.stream().filter(t -> t.startsWith("skipped")).count());
+        Random random = new Random(7);
+        for (int i = 0; i < 50; i++) {
+            int maxChunk = 1 + random.nextInt(i < 25 ? 4 : 64);
+            assertEquals("max chunk " + maxChunk, expected, chunkedTokens(json, maxChunk, random.nextLong()));
+        }
+    }
+
+    // Tokens and skipped errors, with the input in random chunks of up to the given size
+    private List<String> chunkedTokens(String json, int maxChunk, long seed) {
+        Random random = new Random(seed);
+        List<CharBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < json.length(); ) {
+            int size = 1 + random.nextInt(maxChunk);
+            buffers.add(CharBuffer.wrap(json, i, Math.min(i + size, json.length())));
+            i += size;
+        }
+        List<String> tokens = new ArrayList<>();
+        Observable.from(buffers)
+                .compose(new JsonTokenTransformer().skipErrors(e -> tokens.add("skipped " + e.offset())))
+                .subscribe(t -> tokens.add(t.event() + " " + t.buffer() + " " + t.start() + "-" + t.end()));
+        return tokens;
+    }
+
+    @Test
+    public void channelSource() throws Exception {
+        Path json = Files.createTempFile("records", ".json");
+        try {
+            String records = JsonBenchmark.records(100).replace("user", "\u00fcs\u20acr\uD83D\uDE00");
+            Files.write(json, records.getBytes(UTF_8));
+            List<JsonValue> expected = Observable.just(CharBuffer.wrap(records))
+                    .compose(new JsonTokenTransformer())
+                    .compose(new JsonValueTransformer())
+                    .toList().toBlocking().single();
+
+            StripedBufferPool<ByteBuffer> bytes = StripedBufferPool.directBytes();
+            StripedBufferPool<CharBuffer> chars = StripedBufferPool.chars();
+            // Small reads so that chars are split between buffers
+            List<JsonValue> values = ChannelSource.read(json, bytes, 7)
+                    .compose(new DecodeTransformer().bufferPool(chars))
+                    .compose(new JsonTokenTransformer())
+                    .compose(new JsonValueTransformer())
+                    .toList().toBlocking().single();
+            assertEquals(expected, values);
+            assertTrue(bytes.hitRate() > 0.9);
+            assertTrue(chars.hitRate() > 0.9);
+
+            // A subscriber that throws gets an error instead of a stream that hangs
+            CountDownLatch terminated = new CountDownLatch(1);
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            ChannelSource.read(json, bytes, 7).unsafeSubscribe(new Subscriber<ByteBuffer>() {
+                @Override
+                public void onCompleted() {
+                    terminated.countDown();
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                    error.set(e);
+                    terminated.countDown();
+                }
+
+                @Override
+                public void onNext(ByteBuffer buffer) {
+                    throw new IllegalStateException("boom");
+                }
+            });
+            assertTrue(terminated.await(10, TimeUnit.SECONDS));
+            assertEquals("boom", error.get().getMessage());
+        } finally {
+            Files.delete(json);
+        }
+    }
+
+    @Test
+    public void inflate() throws Exception {
+        String records = JsonBenchmark.records(200);
+        byte[] utf8 = records.getBytes(UTF_8);
+        int half = utf8.length / 2;
+        // Two gzip members, like concatenated .gz files. Closing doesn't close the byte array stream
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        for (int i = 0; i < 2; i++) {
+            try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+                out.write(utf8, i * half, i == 0 ? half : utf8.length - half);
+            }
+        }
+        assertEquals(records, inflate(gzip.toByteArray(), new InflateTransformer()
+                .bufferPool(StripedBufferPool.directBytes()).bufferSize(100)));
+
+        ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(zlib)) {
+            out.write(utf8);
+        }
+        assertEquals(records, inflate(zlib.toByteArray(), new InflateTransformer(InflateTransformer.Format.ZLIB)));
+
+        byte[] truncated = Arrays.copyOf(zlib.toByteArray(), zlib.size() / 2);
+        try {
+            inflate(truncated, new InflateTransformer(InflateTransformer.Format.ZLIB));
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof EOFException);
+        }
+    }
+
+    // Inflates the bytes given in small chunks
+    private String inflate(byte[] compressed, InflateTransformer inflate) {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        for (int i = 0; i < compressed.length; i += 5) {
+            chunks.add(ByteBuffer.wrap(compressed, i, Math.min(5, compressed.length - i)));
+        }
+        return Observable.from(chunks)
+                .compose(inflate)
+                .compose(new DecodeTransformer())
+                .map(CharBuffer::toString)
+                .reduce(new StringBuilder(), StringBuilder::append)
+                .toBlocking().single().toString();
+    }
+
+    @Test
+    public void pipelined() throws Exception {
+        String records = JsonBenchmark.records(2000);
+        List<JsonValue> expected = Observable.just(CharBuffer.wrap(records))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer())
+                .toList().toBlocking().single();
+        List<JsonValue> values = Observable.from(JsonBenchmark.chunk(records, 100))
+                .subscribeOn(Schedulers.io())
+                .compose(new PipelinedValueTransformer(Schedulers.computation()).queueSize(2))
+                .toList().toBlocking().single();
+        assertEquals(expected, values);
+
+        List<Throwable> errors = new ArrayList<>();
+        Observable.just(CharBuffer.wrap("[1, 2] [3, x]"))
+                .compose(new PipelinedValueTransformer(Schedulers.computation()))
+                .toBlocking().subscribe(value -> {}, errors::add);
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof JsonParseException);
+
+        // The last number ends with the input, its batch comes after the queue is full
+        List<JsonValue> numbers = Observable.just("1 ", "1 ", "1 ", "1 7")
+                .map(CharBuffer::wrap)
+                .compose(new PipelinedValueTransformer(Schedulers.computation()).queueSize(4))
+                .toList().toBlocking().single();
+        assertEquals(Arrays.asList("1", "1", "1", "1", "7"), numbers.stream().map(Object::toString).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void batches() throws Exception {
+        String records = JsonBenchmark.records(100);
+        List<CharBuffer> buffers = JsonBenchmark.chunk(records, 1000);
+        List<JsonToken> expected = Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenTransformer())
+                .toList().toBlocking().single();
+        List<JsonTokenBatch> batches = Observable.from(buffers)
+                .map(CharBuffer::duplicate)
+                .compose(new JsonTokenBatchTransformer().bufferPool(StripedBufferPool.chars()))
+                .toList().toBlocking().single();
+        assertTrue(batches.size() <= buffers.size());
+        assertEquals(expected, Observable.from(batches).concatMap(JsonTokenBatch::tokens).toList().toBlocking().single());
+
+        List<JsonValue> values = Observable.from(batches)
+                .compose(new JsonBatchValueTransformer())
+                .toList().toBlocking().single();
+        assertEquals(100, values.size());
+
+        // The batch of the last number waits for a demand after the one for the buffers
+        TestSubscriber<JsonTokenBatch> subscriber = new TestSubscriber<>(4);
+        Observable.just("1 ", "1 ", "1 ", "1 7")
+                .map(CharBuffer::wrap)
+                .compose(new JsonTokenBatchTransformer())
+                .subscribe(subscriber);
+        subscriber.assertValueCount(4);
+        subscriber.assertNotCompleted();
+        subscriber.requestMore(1);
+        subscriber.assertNoErrors();
+        subscriber.assertValueCount(5);
+        subscriber.assertCompleted();
+    }
+
+    @Test
+    public void bind() throws Exception {
+        List<JsonBenchmark.Record> records = Observable.from(JsonBenchmark.chunk(JsonBenchmark.records(100), 100))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonBindTransformer<>(JsonBenchmark.Record.class))
+                .toList().toBlocking().single();
+        assertEquals(100, records.size());
+        JsonBenchmark.Record record = records.get(3);
+        assertEquals(3, record.id);
+        assertEquals("user3", record.name);
+        assertTrue(record.active);
+        assertEquals(0.75, record.score, 0);
+        assertEquals(Arrays.asList("a", "b", null), record.tags);
+        assertEquals("New York", record.address.city);
+        assertEquals("10021", record.address.zip);
+
+        String json = "[{\"count\": 7, \"total\": null, \"amount\": 12.50, \"big\": 123456789012345678901,"
+                + " \"kind\": \"B\", \"unknown\": {\"a\": [1, {}]}, \"children\": [{\"count\": 1e2}, null]}]";
+        List<Bound> bound = Observable.just(CharBuffer.wrap(json))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonBindTransformer<>(Bound.class))
+                .toList().toBlocking().single();
+        assertEquals(1, bound.size());
+        Bound b = bound.get(0);
+        assertEquals(7, b.count);
+        assertEquals(null, b.total);
+        assertEquals(new BigDecimal("12.50"), b.amount);
+        assertEquals(new BigInteger("123456789012345678901"), b.big);
+        assertEquals(Kind.B, b.kind);
+        assertEquals(2, b.children.size());
+        assertEquals(100, b.children.get(0).count);
+        assertEquals(null, b.children.get(1));
+
+        assertBindException("{\"count\": 1.5}");
+        assertBindException("{\"count\": 3000000000}");
+        assertBindException("{\"big\": 1e20000000}");
+        assertBindException("{\"big\": 1e-20000000}");
+        assertBindException("{\"big\": 1.5}");
+        assertBindException("{\"count\": null}");
+        assertBindException("{\"kind\": \"C\"}");
+        assertBindException("{\"count\": 1");
+        assertBindException("[1]");
+    }
+
+    private static void assertBindException(String json) {
+        List<Throwable> errors = new ArrayList<>();
+        Observable.just(CharBuffer.wrap(json))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonBindTransformer<>(Bound.class))
+                .subscribe(value -> {}, errors::add);
+        assertEquals(json, 1, errors.size());
+        assertTrue(json, errors.get(0) instanceof JsonParseException);
+    }
+
+    enum Kind { A, B }
+
+    static class Bound {
+        int count;
+        Long total;
+        BigDecimal amount;
+        BigInteger big;
+        Kind kind;
+        List<Bound> children;
+    }
+
+    @Test
+    public void keySet() throws Exception {
+        JsonKeySet keys = JsonKeySet.of("id", "name", "Aa", "BB", "caf\u00e9");
+        List<Integer> indexes = Observable.just(CharBuffer.wrap(
+                "{\"name\": 1, \"BB\": 2, \"Aa\": 3, \"other\": 4, \"caf\\u00e9\": 5, \"id\": 6, \"i\": 7}"))
+                .compose(new JsonTokenTransformer())
+                .filter(token -> token.event() == JsonToken.Id.KEY)
+                .map(keys::index)
+                .toList().toBlocking().single();
+        assertEquals(Arrays.asList(1, 3, 2, JsonKeySet.UNKNOWN, 4, 0, JsonKeySet.UNKNOWN), indexes);
+
+        String[] many = new String[500];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = "key" + i;
+        }
+        JsonKeySet big = JsonKeySet.of(many);
+        for (int i = 0; i < many.length; i++) {
+            assertEquals(i, big.index(new StringBuilder(many[i])));
+        }
+        assertEquals(JsonKeySet.UNKNOWN, big.index("key500"));
+        assertEquals(JsonKeySet.UNKNOWN, JsonKeySet.of().index("id"));
+    }
+
+    @Test
+    public void literals() throws Exception {
+        List<JsonToken> tokens = Observable.just(CharBuffer.wrap("[true,false, null]"))
+                .compose(new JsonTokenTransformer().offsets(true))
+                .toList().toBlocking().single();
+        assertEquals(Arrays.asList(JsonToken.START_ARRAY, JsonToken.VALUE_TRUE, JsonToken.VALUE_FALSE,
+                JsonToken.VALUE_NULL, JsonToken.END_ARRAY), tokens);
+        assertEquals(1, tokens.get(1).start());
+        assertEquals(5, tokens.get(1).end());
+        assertEquals(13, tokens.get(3).start());
+        assertEquals(17, tokens.get(3).end());
+
+        // Literals that are cut by the end of a buffer
+        assertEquals(tokens, Observable.just(CharBuffer.wrap("[tr"), CharBuffer.wrap("ue,f"), CharBuffer.wrap("alse, nu"),
+                CharBuffer.wrap("ll]"))
+                .compose(new JsonTokenTransformer())
+                .toList().toBlocking().single());
+
+        assertParseException("[trux]", "Expecting tru'e'");
+        assertParseException("[falsy]", "Expecting fals'e'");
+        assertParseException("[nulL, 1]", "Expecting nul'l'");
+    }
+
+    @Test
+    public void deepNesting() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append(i % 2 == 0 ? "{\"a\": [" : "[");
+        }
+        sb.append("true");
+        for (int i = 99; i >= 0; i--) {
+            sb.append(i % 2 == 0 ? "]}" : "]");
+        }
+        String json = sb.toString();
+        List<JsonValue> values = Observable.just(CharBuffer.wrap(json + json))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer())
+                .toList().toBlocking().single();
+        assertEquals(2, values.size());
+        assertEquals(values.get(0), values.get(1));
+        assertEquals(json.replace(" ", "").replace("\"a\":", "a="), values.get(0).toString().replace(" ", ""));
+
+        assertParseException(json.substring(0, json.length() - 1) + "]", "Expecting '}' or ','");
+    }
+
+    @Test
+    public void pooled() throws Exception {
+        JsonTokenTransformer tokens = new JsonTokenTransformer().pooled(true);
+        JsonValueTransformer values = new JsonValueTransformer().pooled(true);
+        List<JsonToken> first = Observable.just(CharBuffer.wrap("{\"a\": \"x\"}"))
+                .compose(tokens)
+                .toList().toBlocking().single();
+
+        // Streams that fail halfway leave nothing behind for the next ones
+        for (int i = 0; i < 10; i++) {
+            List<Throwable> errors = new ArrayList<>();
+            Observable.just(CharBuffer.wrap("{\"a\": [1, {\"b\": \"\\u12"))
+                    .compose(tokens)
+                    .compose(values)
+                    .subscribe(value -> {}, errors::add);
+            assertEquals(1, errors.size());
+
+            List<JsonValue> parsed = Observable.just(CharBuffer.wrap("[1, {\"c\": true}]\n2"))
+                    .compose(tokens)
+                    .compose(values)
+                    .toList().toBlocking().single();
+            assertEquals("[[1, {c=true}], 2]", parsed.toString());
+        }
+
+        // Without a buffer pool, the tokens of an earlier stream stay valid
+        assertEquals("a", first.get(1).buffer().toString());
+        assertEquals("x", first.get(2).buffer().toString());
+    }
+
+    @Test
+    public void indexed() throws Exception {
+        String records = JsonBenchmark.records(20);
+        String[] inputs = {
+                records,
+                "[\"a\\u00e9\\uD83D\\uDE00\\n\\\"\\\\\", -12.5e3, true, false, null, [], {}, \"x\\\\\"]\n\"b\" 42 {}",
+                records + "{\"bad\": tru}\n",
+                records + "[1, 2}",
+                "{\"a\": [1, 2, 3],\n \"b\": \"\\uDE00\"}",
+                "{\"a\": [1, 2, 3],\n \"b\": \"x\ty\"}",
+                "[\"123456789012345678\"]  1e+5",
+                "{\"a\": 1}\n[true, 1]x",
+                "[1, 2, 3, 4, 5, 6, 7, 8, 9]\n12"
+        };
+        for (String json : inputs) {
+            // Buffers of a char are never indexed
+            List<CharBuffer> chars = new ArrayList<>();
+            for (char ch : json.toCharArray()) {
+                chars.add(CharBuffer.wrap(new char[] { ch }));
+            }
+            assertEquals(json, tokensAndError(Observable.from(chars)),
+                    tokensAndError(Observable.just(CharBuffer.wrap(json))));
+        }
+    }
+
+    private static List<String> tokensAndError(Observable<CharBuffer> buffers) {
+        List<String> tokens = new ArrayList<>();
+        buffers.compose(new JsonTokenTransformer().offsets(true))
+                .subscribe(t -> tokens.add(t.event() + " " + t.buffer() + " " + t.start() + "-" + t.end()),
+                        e -> tokens.add(e.getMessage()));
+        return tokens;
+    }
+
+    @Test
+    public void longStrings() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append("plain text ").append(i).append(i % 50 == 0 ? "\\t\\u00e9\\\"" : "");
+        }
+        String json = "[\"" + sb + "\", \"" + sb + "\"]";
+        String expected = sb.toString().replace("\\t", "\t").replace("\\u00e9", "\u00e9").replace("\\\"", "\"");
+
+        // Arrays that split the strings, for the char states as limits turn off the index
+        List<CharBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < json.length(); i += 1000) {
+            buffers.add(CharBuffer.wrap(json.substring(i, Math.min(i + 1000, json.length())).toCharArray()));
+        }
+        List<JsonToken> tokens = Observable.from(buffers)
+                .compose(new JsonTokenTransformer().limits(JsonLimits.DEFAULT))
+                .toList().toBlocking().single();
+        assertEquals(4, tokens.size());
+        assertEquals(expected, tokens.get(1).buffer().toString());
+        assertEquals(expected.hashCode(), tokens.get(1).hash());
+        assertEquals(expected, tokens.get(2).buffer().toString());
+
+        try {
+            @SuppressWarnings("unchecked")
+            Subscriber<JsonToken> subscriber = mock(Subscriber.class);
+            new JsonTokenizer(subscriber, null, JsonLimits.DEFAULT.withMaxStringLength(100), null, false)
+                    .parse(CharBuffer.wrap(json.toCharArray()));
+            fail("Expected JsonLimitException");
+        } catch (JsonLimitException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("String is longer than 100 chars"));
+        }
+    }
+
+    @Test
+    public void lazyStrings() throws Exception {
+        String json = "[\"caf\\u00e9 \\\"x\\\"\", \"caf\\u00e9 \\\"x\\\"\", \"other\"]";
+        String expected = "caf\u00e9 \"x\"";
+        StripedBufferPool<CharBuffer> pool = StripedBufferPool.chars();
+        for (JsonTokenTransformer tokenizer : new JsonTokenTransformer[] {
+                new JsonTokenTransformer(), new JsonTokenTransformer().bufferPool(pool) }) {
+            List<JsonValue> strings = Observable.just(CharBuffer.wrap(json), CharBuffer.wrap(json))
+                    .compose(tokenizer)
+                    .compose(new JsonValueTransformer().views(true))
+                    .map(array -> ((JsonArray) array).values().get(0))
+                    .toList().toBlocking().single();
+            JsonString first = (JsonString) strings.get(0);
+            JsonString second = (JsonString) strings.get(1);
+            assertTrue(first.contentEquals(expected));
+            assertFalse(first.contentEquals("caf\u00e9 \"y\""));
+            assertEquals(expected.length(), first.length());
+            assertEquals('\u00e9', first.charAt(3));
+            assertEquals("\"x\"", first.subSequence(5, 8).toString());
+            assertEquals(expected.hashCode(), first.hashCode());
+            assertEquals(first, second);
+            assertEquals(new JsonString(expected), first);
+            assertEquals(first, new JsonString(expected));
+            assertEquals(expected, first.toString());
+            assertSame(first.toString(), first.toString());
+        }
+    }
+
+    @Test
+    public void views() throws Exception {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 10_000; i++) {
+            sb.append(i == 0 ? "" : ", ").append("\"v").append(i).append("\", -").append(i).append(".5");
+        }
+        JsonArray array = (JsonArray) Observable.just(CharBuffer.wrap(sb.append(']').toString()))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer().views(true))
+                .toBlocking().single();
+        List<JsonValue> values = array.values();
+        assertEquals(20_000, values.size());
+        for (int i = 0; i < 10_000; i++) {
+            JsonString string = (JsonString) values.get(2 * i);
+            JsonNumber number = (JsonNumber) values.get(2 * i + 1);
+            assertTrue(string.contentEquals("v" + i));
+            assertEquals(new JsonString("v" + i), string);
+            assertEquals(new JsonNumber("-" + i + ".5"), number);
+            assertEquals(("-" + i + ".5").hashCode(), number.hashCode());
+            assertEquals(-(i + 0.5), Double.parseDouble(number.toString()), 0);
+        }
+        assertFalse(values.get(0).equals(new JsonNumber("v0")));
+    }
+
+    @Test
+    public void stringCache() throws Exception {
+        String json = "[\"OK\", \"us-east-1\", \"OK\", \"a long message\", \"us-east-1\", \"a long message\", \"OK\"]";
+        JsonStringCache cache = new JsonStringCache(16, 10);
+        JsonArray array = (JsonArray) Observable.just(CharBuffer.wrap(json))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer().stringCache(cache))
+                .toBlocking().single();
+        List<JsonValue> values = array.values();
+        assertSame(values.get(0), values.get(2));
+        assertSame(values.get(0), values.get(6));
+        assertSame(values.get(1), values.get(4));
+        assertFalse(values.get(3) == values.get(5));
+        assertEquals(values.get(3), values.get(5));
+        assertEquals(new JsonString("us-east-1"), values.get(1));
+        assertEquals(3, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(2, cache.skips());
+        assertEquals(0.6, cache.hitRate(), 0);
+
+        // A full set keeps the strings that are used again
+        JsonStringCache small = new JsonStringCache(1, 10);
+        List<JsonValue> strings = Observable.just(CharBuffer.wrap("\"a\" \"b\" \"c\" \"d\" \"a\" \"e\" \"a\""))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer().stringCache(small))
+                .toList().toBlocking().single();
+        assertSame(strings.get(0), strings.get(4));
+        assertSame(strings.get(0), strings.get(6));
+        assertEquals(2, small.hits());
+    }
 }
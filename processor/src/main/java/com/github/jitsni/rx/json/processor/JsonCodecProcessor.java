@@ -0,0 +1,657 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates a {@code JsonTypeCodec} for every class annotated with
+ * {@code @JsonCodec}. The generated codecs set and read the fields directly
+ * and find the field of a key with a switch on the key's hash, so there is
+ * no reflection and no warmup of reflective calls at runtime.
+ *
+ * @author Jitendra Kotamraju
+ */
+@SupportedAnnotationTypes(JsonCodecProcessor.JSON_CODEC)
+public class JsonCodecProcessor extends AbstractProcessor {
+    static final String JSON_CODEC = "com.github.jitsni.rx.json.JsonCodec";
+
+    private enum Kind {
+        BOOLEAN("booleanValue"),
+        INT("intValue"),
+        LONG("longValue"),
+        DOUBLE("doubleValue"),
+        FLOAT("floatValue"),
+        SHORT("shortValue"),
+        BYTE("byteValue"),
+        STRING("stringValue"),
+        BIG_DECIMAL("bigDecimalValue"),
+        BIG_INTEGER("bigIntegerValue"),
+        ENUM(null),
+        OBJECT(null),
+        LIST(null);
+
+        // JsonTypeCodec helper that reads a token of this kind
+        final String reader;
+
+        Kind(String reader) {
+            this.reader = reader;
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : round.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) {
+                    error(element, "@JsonCodec can only be used on classes");
+                    continue;
+                }
+                TypeElement type = (TypeElement) element;
+                try {
+                    generate(type);
+                } catch (CodecException e) {
+                    error(e.element, e.getMessage());
+                } catch (IOException e) {
+                    error(type, "Can't write the codec: " + e);
+                }
+            }
+        }
+        return true;
+    }
+
+    // javax.annotation.Generated is gone since JDK 11, its replacement exists since JDK 9
+    private String generatedAnnotation() {
+        for (String name : new String[] { "javax.annotation.processing.Generated", "javax.annotation.Generated" }) {
+            if (processingEnv.getElementUtils().getTypeElement(name) != null) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private void generate(TypeElement type) throws IOException {
+        check(type);
+        List<Field> fields = fields(type);
+        String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String codec = codecName(type);
+        CodeWriter w = new CodeWriter();
+        if (!pkg.isEmpty()) {
+            w.line("package " + pkg + ";").line("");
+        }
+        String name = type.getQualifiedName().toString();
+        w.line("import com.github.jitsni.rx.json.JsonToken;")
+                .line("import com.github.jitsni.rx.json.JsonTypeCodec;")
+                .line("")
+                .line("import java.nio.CharBuffer;")
+                .line("")
+                .line("/**")
+                .line(" * Generated by " + JsonCodecProcessor.class.getName() + " for {@link " + name + "}.")
+                .line(" */");
+        String generated = generatedAnnotation();
+        if (generated != null) {
+            w.line("@" + generated + "(\"" + JsonCodecProcessor.class.getName() + "\")");
+        }
+        w.open("public final class " + codec + " extends JsonTypeCodec<" + name + ">")
+                .line("public static final " + codec + " INSTANCE = new " + codec + "();")
+                .line("")
+                .open("private " + codec + "()")
+                .close()
+                .line("");
+
+        w.line("@Override")
+                .open("protected " + name + " newInstance()")
+                .line("return new " + name + "();")
+                .close()
+                .line("");
+
+        writeField(w, fields);
+        writeShape(w, fields);
+        writeSetToken(w, name, fields);
+        writeSetValue(w, name, fields);
+        writeElement(w, fields);
+        writeCodec(w, fields);
+        writeEncode(w, name, fields);
+        w.close();
+
+        String qualified = pkg.isEmpty() ? codec : pkg + "." + codec;
+        try (Writer writer = processingEnv.getFiler().createSourceFile(qualified, type).openWriter()) {
+            writer.write(w.toString());
+        }
+    }
+
+    // Keys are dispatched on String.hashCode(), which the tokenizer computes for a key token
+    private void writeField(CodeWriter w, List<Field> fields) {
+        Map<Integer, List<Field>> byHash = new LinkedHashMap<>();
+        for (Field field : fields) {
+            byHash.computeIfAbsent(field.name.hashCode(), h -> new ArrayList<>()).add(field);
+        }
+        w.line("@Override")
+                .open("protected int field(CharBuffer key, int hash)")
+                .open("switch (hash)");
+        for (Map.Entry<Integer, List<Field>> entry : byHash.entrySet()) {
+            w.indent("case " + entry.getKey() + ":");
+            List<Field> same = entry.getValue();
+            for (int i = 0; i < same.size() - 1; i++) {
+                Field field = same.get(i);
+                w.open("if (equals(key, " + literal(field.name) + "))").line("return " + field.index + ";").close();
+            }
+            Field last = same.get(same.size() - 1);
+            w.line("return equals(key, " + literal(last.name) + ") ? " + last.index + " : -1;").outdent();
+        }
+        w.indent("default:").line("return -1;").outdent()
+                .close()
+                .close()
+                .line("");
+    }
+
+    private void writeShape(CodeWriter w, List<Field> fields) {
+        w.line("@Override")
+                .open("protected int shape(int field)")
+                .open("switch (field)");
+        for (Field field : fields) {
+            if (field.type.kind == Kind.OBJECT || field.type.kind == Kind.LIST) {
+                w.indent("case " + field.index + ":")
+                        .line("return " + field.type.kind + ";")
+                        .outdent();
+            }
+        }
+        w.indent("default:").line("return SCALAR;").outdent()
+                .close()
+                .close()
+                .line("");
+    }
+
+    private void writeSetToken(CodeWriter w, String name, List<Field> fields) {
+        w.line("@Override")
+                .open("protected void set(" + name + " object, int field, JsonToken token)")
+                .open("switch (field)");
+        for (Field field : fields) {
+            w.indent("case " + field.index + ":");
+            String target = "object." + field.name;
+            if (field.type.kind == Kind.OBJECT || field.type.kind == Kind.LIST) {
+                w.open("if (!isNull(token))")
+                        .line("throw mismatch(token, " + literal(field.name) + ");")
+                        .close()
+                        .line(target + " = null;");
+            } else {
+                w.line(target + " = " + read(field.type, field.name) + ";");
+            }
+            w.line("break;").outdent();
+        }
+        w.close()
+                .close()
+                .line("");
+    }
+
+    private void writeSetValue(CodeWriter w, String name, List<Field> fields) {
+        w.line("@Override")
+                .line("@SuppressWarnings(\"unchecked\")")
+                .open("protected void set(" + name + " object, int field, Object value)")
+                .open("switch (field)");
+        for (Field field : fields) {
+            if (field.type.kind == Kind.OBJECT || field.type.kind == Kind.LIST) {
+                w.indent("case " + field.index + ":")
+                        .line("object." + field.name + " = (" + field.type.name + ") value;")
+                        .line("break;")
+                        .outdent();
+            }
+        }
+        w.close()
+                .close()
+                .line("");
+    }
+
+    private void writeElement(CodeWriter w, List<Field> fields) {
+        w.line("@Override")
+                .open("protected Object element(int field, JsonToken token)")
+                .open("switch (field)");
+        for (Field field : fields) {
+            FieldType element = field.type.element;
+            if (element != null && element.kind != Kind.OBJECT) {
+                w.indent("case " + field.index + ":")
+                        .line("return " + read(element, field.name) + ";")
+                        .outdent();
+            }
+        }
+        w.indent("default:")
+                .open("if (!isNull(token))")
+                .line("throw mismatch(token, \"element\");")
+                .close()
+                .line("return null;")
+                .outdent()
+                .close()
+                .close()
+                .line("");
+    }
+
+    private void writeCodec(CodeWriter w, List<Field> fields) {
+        w.line("@Override")
+                .open("protected JsonTypeCodec<?> codec(int field)")
+                .open("switch (field)");
+        for (Field field : fields) {
+            FieldType type = field.type.kind == Kind.LIST ? field.type.element : field.type;
+            if (type.kind == Kind.OBJECT) {
+                w.indent("case " + field.index + ":")
+                        .line("return " + type.codec + ".INSTANCE;")
+                        .outdent();
+            }
+        }
+        w.indent("default:").line("return null;").outdent()
+                .close()
+                .close()
+                .line("");
+    }
+
+    private void writeEncode(CodeWriter w, String name, List<Field> fields) {
+        w.line("@Override")
+                .open("public void encode(" + name + " object, StringBuilder out)")
+                .open("if (object == null)")
+                .line("out.append(\"null\");")
+                .line("return;")
+                .close();
+        char separator = '{';
+        for (Field field : fields) {
+            w.line("out.append(" + literal(separator + quote(field.name) + ":") + ");");
+            separator = ',';
+            String value = "object." + field.name;
+            if (field.type.kind == Kind.LIST) {
+                w.open("if (" + value + " == null)")
+                        .line("out.append(\"null\");")
+                        .close("} else {")
+                        .line("out.append('[');")
+                        .line("int n = 0;")
+                        .open("for (" + field.type.element.name + " element : " + value + ")")
+                        .open("if (n++ > 0)")
+                        .line("out.append(',');")
+                        .close();
+                encode(w, field.type.element, "element");
+                w.close()
+                        .line("out.append(']');")
+                        .close();
+            } else {
+                encode(w, field.type, value);
+            }
+        }
+        if (fields.isEmpty()) {
+            w.line("out.append('{');");
+        }
+        w.line("out.append('}');")
+                .close();
+    }
+
+    private static void encode(CodeWriter w, FieldType type, String value) {
+        if (type.primitive) {
+            if (type.kind == Kind.DOUBLE || type.kind == Kind.FLOAT) {
+                w.line("number(" + value + ", out);");
+            } else {
+                w.line("out.append(" + value + ");");
+            }
+            return;
+        }
+        if (type.kind == Kind.OBJECT) {
+            w.line(type.codec + ".INSTANCE.encode(" + value + ", out);");
+            return;
+        }
+        w.open("if (" + value + " == null)")
+                .line("out.append(\"null\");")
+                .close("} else {");
+        switch (type.kind) {
+            case STRING:
+                w.line("string(" + value + ", out);");
+                break;
+            case ENUM:
+                w.line("string(" + value + ".name(), out);");
+                break;
+            case DOUBLE:
+            case FLOAT:
+                w.line("number(" + value + ", out);");
+                break;
+            default:
+                w.line("out.append(" + value + ");");
+                break;
+        }
+        w.close();
+    }
+
+    // Expression that reads a scalar token of the type
+    private static String read(FieldType type, String field) {
+        String name = literal(field);
+        String value = type.kind == Kind.ENUM
+                ? "enumValue(" + type.name + ".class, token, " + name + ")"
+                : type.kind.reader + "(token, " + name + ")";
+        if (type.primitive) {
+            return value;
+        }
+        if (type.boxed) {
+            value = type.name + ".valueOf(" + value + ")";
+        }
+        return "isNull(token) ? null : " + value;
+    }
+
+    private void check(TypeElement type) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+            throw new CodecException(type, "A @JsonCodec class can't be abstract");
+        }
+        if (!type.getTypeParameters().isEmpty()) {
+            throw new CodecException(type, "A @JsonCodec class can't be generic");
+        }
+        for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+            TypeElement t = (TypeElement) e;
+            if (t.getModifiers().contains(Modifier.PRIVATE)) {
+                throw new CodecException(type, "A @JsonCodec class can't be private");
+            }
+            if (t.getNestingKind() == NestingKind.MEMBER && !t.getModifiers().contains(Modifier.STATIC)) {
+                throw new CodecException(type, "A nested @JsonCodec class must be static");
+            }
+        }
+        List<ExecutableElement> constructors = ElementFilter.constructorsIn(type.getEnclosedElements());
+        boolean noArg = false;
+        for (ExecutableElement constructor : constructors) {
+            noArg |= constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE);
+        }
+        if (!noArg) {
+            throw new CodecException(type, "A @JsonCodec class needs a no-arg constructor that is not private");
+        }
+    }
+
+    // Fields of the class and its superclasses, a field hides the ones of its superclasses.
+    // The codec is in the package of the class and not a subclass, so only public fields
+    // of public superclasses are accessible from another package
+    private List<Field> fields(TypeElement type) {
+        List<Field> fields = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        for (TypeElement t = type; t != null; t = superclass(t)) {
+            boolean samePackage = processingEnv.getElementUtils().getPackageOf(t).equals(pkg);
+            if (!samePackage && !t.getModifiers().contains(Modifier.PUBLIC)) {
+                continue;
+            }
+            for (VariableElement field : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+                Set<Modifier> modifiers = field.getModifiers();
+                if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)
+                        || modifiers.contains(Modifier.PRIVATE)
+                        || (!samePackage && !modifiers.contains(Modifier.PUBLIC))) {
+                    continue;
+                }
+                String name = field.getSimpleName().toString();
+                if (!names.add(name)) {
+                    continue;
+                }
+                if (modifiers.contains(Modifier.FINAL)) {
+                    throw new CodecException(field, "A final field can't be set by a codec");
+                }
+                fields.add(new Field(name, fields.size(), fieldType(field, field.asType(), true)));
+            }
+        }
+        return fields;
+    }
+
+    private TypeElement superclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        TypeElement element = (TypeElement) ((DeclaredType) superclass).asElement();
+        return element.getQualifiedName().contentEquals("java.lang.Object") ? null : element;
+    }
+
+    private FieldType fieldType(Element field, TypeMirror type, boolean list) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return new FieldType(Kind.BOOLEAN, "boolean", true);
+            case INT:
+                return new FieldType(Kind.INT, "int", true);
+            case LONG:
+                return new FieldType(Kind.LONG, "long", true);
+            case DOUBLE:
+                return new FieldType(Kind.DOUBLE, "double", true);
+            case FLOAT:
+                return new FieldType(Kind.FLOAT, "float", true);
+            case SHORT:
+                return new FieldType(Kind.SHORT, "short", true);
+            case BYTE:
+                return new FieldType(Kind.BYTE, "byte", true);
+            case DECLARED:
+                break;
+            default:
+                throw new CodecException(field, "Unsupported type " + type);
+        }
+        DeclaredType declared = (DeclaredType) type;
+        TypeElement element = (TypeElement) declared.asElement();
+        String name = element.getQualifiedName().toString();
+        switch (name) {
+            case "java.lang.Boolean":
+                return boxed(Kind.BOOLEAN, name);
+            case "java.lang.Integer":
+                return boxed(Kind.INT, name);
+            case "java.lang.Long":
+                return boxed(Kind.LONG, name);
+            case "java.lang.Double":
+                return boxed(Kind.DOUBLE, name);
+            case "java.lang.Float":
+                return boxed(Kind.FLOAT, name);
+            case "java.lang.Short":
+                return boxed(Kind.SHORT, name);
+            case "java.lang.Byte":
+                return boxed(Kind.BYTE, name);
+            case "java.lang.String":
+                return new FieldType(Kind.STRING, name, false);
+            case "java.math.BigDecimal":
+                return new FieldType(Kind.BIG_DECIMAL, name, false);
+            case "java.math.BigInteger":
+                return new FieldType(Kind.BIG_INTEGER, name, false);
+            case "java.util.List":
+            case "java.util.ArrayList":
+            case "java.util.Collection":
+            case "java.lang.Iterable":
+                if (!list || declared.getTypeArguments().size() != 1) {
+                    throw new CodecException(field, "Unsupported type " + type);
+                }
+                FieldType elementType = fieldType(field, declared.getTypeArguments().get(0), false);
+                FieldType listType = new FieldType(Kind.LIST, type.toString(), false);
+                listType.element = elementType;
+                return listType;
+            default:
+                break;
+        }
+        if (element.getKind() == ElementKind.ENUM) {
+            return new FieldType(Kind.ENUM, name, false);
+        }
+        if (isCodec(element)) {
+            FieldType object = new FieldType(Kind.OBJECT, name, false);
+            String pkg = processingEnv.getElementUtils().getPackageOf(element).getQualifiedName().toString();
+            object.codec = pkg.isEmpty() ? codecName(element) : pkg + "." + codecName(element);
+            return object;
+        }
+        throw new CodecException(field, "Unsupported type " + type + ", a class needs @JsonCodec to be a field");
+    }
+
+    private static FieldType boxed(Kind kind, String name) {
+        FieldType type = new FieldType(kind, name, false);
+        type.boxed = true;
+        return type;
+    }
+
+    private static boolean isCodec(TypeElement element) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(JSON_CODEC)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Outer_InnerJsonCodec for a nested class
+    private static String codecName(TypeElement type) {
+        StringBuilder sb = new StringBuilder(type.getSimpleName());
+        for (Element e = type.getEnclosingElement(); e instanceof TypeElement; e = e.getEnclosingElement()) {
+            sb.insert(0, e.getSimpleName() + "_");
+        }
+        return sb.append("JsonCodec").toString();
+    }
+
+    private static String literal(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '"' || ch == '\\') {
+                sb.append('\\').append(ch);
+            } else if (ch < 0x20 || ch > 0x7E) {
+                sb.append(String.format("\\u%04x", (int) ch));
+            } else {
+                sb.append(ch);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    // A field name as JSON, the names are Java identifiers so only the quotes are needed
+    private static String quote(String name) {
+        return "\"" + name + "\"";
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private static final class Field {
+        final String name;
+        final int index;
+        final FieldType type;
+
+        Field(String name, int index, FieldType type) {
+            this.name = name;
+            this.index = index;
+            this.type = type;
+        }
+    }
+
+    private static final class FieldType {
+        final Kind kind;
+        // Name in the generated source
+        final String name;
+        final boolean primitive;
+        boolean boxed;
+        // Codec class of an object
+        String codec;
+        // Element type of a list
+        FieldType element;
+
+        FieldType(Kind kind, String name, boolean primitive) {
+            this.kind = kind;
+            this.name = name;
+            this.primitive = primitive;
+        }
+    }
+
+    private static final class CodecException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final Element element;
+
+        CodecException(Element element, String message) {
+            super(message);
+            this.element = element;
+        }
+    }
+
+    // Writes the lines of the generated source with 4 space indents
+    private static final class CodeWriter {
+        private final StringBuilder sb = new StringBuilder();
+        private int depth;
+
+        CodeWriter line(String line) {
+            if (!line.isEmpty()) {
+                for (int i = 0; i < depth; i++) {
+                    sb.append("    ");
+                }
+                sb.append(line);
+            }
+            sb.append('\n');
+            return this;
+        }
+
+        // A line that starts a block
+        CodeWriter open(String line) {
+            line(line + " {");
+            depth++;
+            return this;
+        }
+
+        CodeWriter close() {
+            return close("}");
+        }
+
+        // A line that ends a block, and starts another one if it ends with {
+        CodeWriter close(String line) {
+            depth--;
+            line(line);
+            if (line.endsWith("{")) {
+                depth++;
+            }
+            return this;
+        }
+
+        // A case label, whose statements are indented
+        CodeWriter indent(String line) {
+            line(line);
+            depth++;
+            return this;
+        }
+
+        CodeWriter outdent() {
+            depth--;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+}
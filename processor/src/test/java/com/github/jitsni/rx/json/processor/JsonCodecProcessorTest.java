@@ -0,0 +1,222 @@
+/**
+ * Copyright 2013-2014 Jitendra Kotamraju.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.jitsni.rx.json.processor;
+
+import com.github.jitsni.rx.json.JsonDecodeTransformer;
+import com.github.jitsni.rx.json.JsonTokenTransformer;
+import com.github.jitsni.rx.json.JsonTypeCodec;
+import com.github.jitsni.rx.json.JsonValue;
+import com.github.jitsni.rx.json.JsonValueTransformer;
+import org.junit.Test;
+import rx.Observable;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JsonCodecProcessorTest {
+
+    private static final String RECORD = String.join("\n",
+            "package test;",
+            "import com.github.jitsni.rx.json.JsonCodec;",
+            "import java.math.BigDecimal;",
+            "import java.util.List;",
+            "@JsonCodec",
+            "public class Record {",
+            "    public enum Kind { A, B }",
+            "    @JsonCodec",
+            "    public static class Address {",
+            "        public String city;",
+            "        public int zip;",
+            "    }",
+            "    public int id;",
+            "    public String name;",
+            "    public boolean active;",
+            "    public double score;",
+            "    public Long total;",
+            "    public BigDecimal amount;",
+            "    public Kind kind;",
+            "    public List<String> tags;",
+            "    public Address address;",
+            "    public List<Address> previous;",
+            "    public int Aa;",
+            "    public int BB;",
+            "    public transient int ignored;",
+            "}");
+
+    @Test
+    public void decodeAndEncode() throws Exception {
+        ClassLoader loader = compile(RECORD);
+        Class<?> type = loader.loadClass("test.Record");
+        JsonTypeCodec<Object> codec = codec(loader, "test.RecordJsonCodec");
+
+        String json = "[{\"id\": 7, \"name\": \"a \\\"b\\\"\", \"active\": true, \"score\": 2.5, \"total\": null,"
+                + " \"amount\": 1.25, \"kind\": \"B\", \"tags\": [\"x\", null], \"unknown\": [1, {\"id\": 2}],"
+                + " \"address\": {\"city\": \"NY\", \"zip\": 10021}, \"previous\": [{\"city\": \"SF\"}, null],"
+                + " \"Aa\": 1, \"BB\": 2}, {}]";
+        List<Object> records = decode(codec, json);
+        assertEquals(2, records.size());
+        Object record = records.get(0);
+        assertEquals(7, type.getField("id").get(record));
+        assertEquals("a \"b\"", type.getField("name").get(record));
+        assertEquals(true, type.getField("active").get(record));
+        assertEquals(2.5, type.getField("score").get(record));
+        assertEquals(null, type.getField("total").get(record));
+        assertEquals("B", type.getField("kind").get(record).toString());
+        assertEquals(Arrays.asList("x", null), type.getField("tags").get(record));
+        assertEquals(1, type.getField("Aa").get(record));
+        assertEquals(2, type.getField("BB").get(record));
+        Object address = type.getField("address").get(record);
+        assertEquals("NY", address.getClass().getField("city").get(address));
+        assertEquals(10021, address.getClass().getField("zip").get(address));
+        List<?> previous = (List<?>) type.getField("previous").get(record);
+        assertEquals(2, previous.size());
+        assertEquals(null, previous.get(1));
+
+        // Encoded text decodes to the same values
+        String encoded = codec.toJson(record);
+        String expected = "{\"id\": 7, \"name\": \"a \\\"b\\\"\", \"active\": true, \"score\": 2.5, \"total\": null,"
+                + " \"amount\": 1.25, \"kind\": \"B\", \"tags\": [\"x\", null],"
+                + " \"address\": {\"city\": \"NY\", \"zip\": 10021}, \"previous\": [{\"city\": \"SF\", \"zip\": 0}, null],"
+                + " \"Aa\": 1, \"BB\": 2}";
+        assertEquals(values(expected), values(encoded));
+        assertEquals(encoded, codec.toJson(decode(codec, encoded).get(0)));
+
+        List<Throwable> errors = new ArrayList<>();
+        Observable.just(CharBuffer.wrap("{\"id\": \"7\"}"))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonDecodeTransformer<>(codec))
+                .subscribe(value -> {}, errors::add);
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void errors() throws Exception {
+        assertError("Unsupported type java.lang.Object", String.join("\n",
+                "package test;",
+                "@com.github.jitsni.rx.json.JsonCodec",
+                "public class Bad { public Object value; }"));
+        assertError("no-arg constructor", String.join("\n",
+                "package test;",
+                "@com.github.jitsni.rx.json.JsonCodec",
+                "public class Bad { private Bad() { } }"));
+        assertError("needs @JsonCodec", String.join("\n",
+                "package test;",
+                "@com.github.jitsni.rx.json.JsonCodec",
+                "public class Bad { public Other other; public static class Other { } }"));
+    }
+
+    @Test
+    public void otherPackage() throws Exception {
+        // Only the public fields of a superclass in another package are accessible to the codec
+        ClassLoader loader = compile(String.join("\n",
+                "package base;",
+                "public class Base {",
+                "    public String name;",
+                "    protected int id;",
+                "    int size;",
+                "}"), String.join("\n",
+                "package test;",
+                "@com.github.jitsni.rx.json.JsonCodec",
+                "public class Sub extends base.Base { public int count; }"));
+        Class<?> type = loader.loadClass("test.Sub");
+        JsonTypeCodec<Object> codec = codec(loader, "test.SubJsonCodec");
+        Object sub = decode(codec, "{\"name\": \"a\", \"id\": 7, \"size\": 3, \"count\": 2}").get(0);
+        assertEquals("a", type.getField("name").get(sub));
+        assertEquals(2, type.getField("count").get(sub));
+        assertEquals(values("{\"count\": 2, \"name\": \"a\"}"), values(codec.toJson(sub)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JsonTypeCodec<Object> codec(ClassLoader loader, String name) throws Exception {
+        return (JsonTypeCodec<Object>) loader.loadClass(name).getField("INSTANCE").get(null);
+    }
+
+    private static List<Object> decode(JsonTypeCodec<Object> codec, String json) {
+        return Observable.just(CharBuffer.wrap(json))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonDecodeTransformer<>(codec))
+                .toList().toBlocking().single();
+    }
+
+    private static JsonValue values(String json) {
+        return Observable.just(CharBuffer.wrap(json))
+                .compose(new JsonTokenTransformer())
+                .compose(new JsonValueTransformer())
+                .toBlocking().single();
+    }
+
+    private static void assertError(String message, String source) throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        assertFalse(compile(diagnostics, Files.createTempDirectory("codec"), source));
+        boolean found = false;
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            found |= diagnostic.getMessage(null).contains(message);
+        }
+        assertTrue(diagnostics.getDiagnostics().toString(), found);
+    }
+
+    private static ClassLoader compile(String... sources) throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        Path out = Files.createTempDirectory("codec");
+        boolean compiled = compile(diagnostics, out, sources);
+        assertTrue(diagnostics.getDiagnostics().toString(), compiled);
+        return new URLClassLoader(new URL[] { out.toUri().toURL() }, JsonCodecProcessorTest.class.getClassLoader());
+    }
+
+    // Compiles the sources with the processor, the classes and generated sources go to out
+    private static boolean compile(DiagnosticCollector<JavaFileObject> diagnostics, Path out, String... sources)
+            throws Exception {
+        List<File> files = new ArrayList<>();
+        for (String source : sources) {
+            String pkg = source.substring(source.indexOf("package ") + 8).split(";")[0];
+            String name = source.substring(source.indexOf("public class ") + 13).split("[ {]")[0];
+            Path file = out.resolve(pkg).resolve(name + ".java");
+            Files.createDirectories(file.getParent());
+            Files.write(file, source.getBytes(UTF_8));
+            files.add(file.toFile());
+        }
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, UTF_8)) {
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                    Arrays.asList("-d", out.toString(), "-s", out.toString(),
+                            "-classpath", System.getProperty("java.class.path")),
+                    null, fileManager.getJavaFileObjectsFromFiles(files));
+            task.setProcessors(Collections.singletonList(new JsonCodecProcessor()));
+            return task.call();
+        }
+    }
+}